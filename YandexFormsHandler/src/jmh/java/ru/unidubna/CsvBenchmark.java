@@ -0,0 +1,72 @@
+package ru.unidubna;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Reading an export: scores are rows per second, gc.alloc.rate.norm is bytes per row
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvBenchmark {
+    static final int ROWS = 1000;
+
+    @Param({"10", "50"})
+    int questions;
+
+    @Param({"4"})
+    int optionsPerQuestion;
+
+    @Param({"1"})
+    int pointsPerQuestion;
+
+    private Path directory;
+    private String csvPath;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // the eager fetcher prints every row; the console is not what is being measured
+        originalOut = SyntheticExport.silence();
+        directory = SyntheticExport.tempDirectory();
+        csvPath = new SyntheticExport(questions, optionsPerQuestion, pointsPerQuestion)
+                .writeCsv(directory.resolve("export.csv"), ROWS).toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(originalOut);
+        SyntheticExport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public List<Map<String, String>> fetcherConstructor() throws Exception {
+        return new CSVDataFetcher(csvPath).getCsvData();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int streamRows() throws IOException {
+        int fields = 0;
+        try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(csvPath)) {
+            while (rows.hasNext()) {
+                fields += rows.next().size();
+            }
+        }
+        return fields;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public List<Map<String, String>> mappedParser() throws IOException {
+        return MappedCsvParser.parse(csvPath);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package ru.unidubna;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// CSV file in, documents on disk out, as the GUI runs it: scores are rows per second
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+    static final int ROWS = 200;
+
+    @Param({"generated", "auto"})
+    String template;
+
+    @Param({"POI", "STREAMING"})
+    GenerationOptions.Engine engine;
+
+    @Param({"1"})
+    int parallelism;
+
+    @Param({"20"})
+    int questions;
+
+    private Path directory;
+    private String csvPath;
+    private String templatePath;
+    private String outputDirectory;
+    private GenerationOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticExport export = new SyntheticExport(questions, 4, 1);
+        directory = SyntheticExport.tempDirectory();
+        csvPath = export.writeCsv(directory.resolve("export.csv"), ROWS).toString();
+        templatePath = template.equals("auto") ? null : export.writeTemplate(directory.resolve("template.docx")).toString();
+        outputDirectory = directory.resolve("out").toString();
+        options = new GenerationOptions()
+                .setEngine(engine)
+                .setParallelism(parallelism)
+                .setListener(new GenerationListener() {
+                    @Override
+                    public void documentCreated(String outputPath, String studentName) {
+                    }
+                });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticExport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public GenerationReport fillTemplate() throws IOException {
+        try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(csvPath)) {
+            GenerationReport report = WordTemplateProcessor.fillTemplate(templatePath, outputDirectory, rows, options);
+            if (report.hasFailures()) {
+                throw new IllegalStateException(report.getFailures().get(0).toString());
+            }
+            return report;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package ru.unidubna;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One document from an already compiled template: scores are documents per second
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FillBenchmark {
+    @Param({"10", "50"})
+    int questions;
+
+    @Param({"4"})
+    int optionsPerQuestion;
+
+    @Param({"1"})
+    int pointsPerQuestion;
+
+    private Path directory;
+    private String outputPath;
+    private CompiledTemplate template;
+    private Map<String, String> row;
+    private RunMetrics metrics;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticExport export = new SyntheticExport(questions, optionsPerQuestion, pointsPerQuestion);
+        directory = SyntheticExport.tempDirectory();
+        outputPath = directory.resolve("справка.docx").toString();
+        template = CompiledTemplate.fromBytes(export.template());
+        template.streaming();
+        metrics = new RunMetrics();
+        row = RowSchema.compile(export.headers()).project(export.row(0, new Random(42)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticExport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void fillSingleTemplate() throws IOException {
+        try (OutputStream out = new FileOutputStream(outputPath)) {
+            WordTemplateProcessor.fillSingleTemplate(template, out, row, metrics);
+        }
+    }
+
+    // same document through the POI-free engine, without the file system
+    @Benchmark
+    public void streamingWrite() throws IOException {
+        template.streaming().write(row, OutputStream.nullOutputStream());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+package ru.unidubna;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Per-file header analysis: grouping "<question> / <column>" headers and compiling the row schema
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    @Param({"10", "50", "200"})
+    int questions;
+
+    @Param({"4"})
+    int optionsPerQuestion;
+
+    @Param({"1"})
+    int pointsPerQuestion;
+
+    private String[] headers;
+    private String[] row;
+    private RowSchema schema;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticExport export = new SyntheticExport(questions, optionsPerQuestion, pointsPerQuestion);
+        headers = export.headers();
+        row = export.row(0, new Random(42));
+        schema = RowSchema.compile(headers);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> groupQuestions() {
+        return RowSchema.groupQuestions(headers);
+    }
+
+    @Benchmark
+    public RowSchema compileSchema() {
+        return RowSchema.compile(headers);
+    }
+
+    @Benchmark
+    public Map<String, String> projectRow() {
+        return schema.project(row);
+    }
+}
\ No newline at end of file
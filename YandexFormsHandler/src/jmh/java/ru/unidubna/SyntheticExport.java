@@ -0,0 +1,130 @@
+package ru.unidubna;
+
+import org.apache.poi.xwpf.usermodel.*;
+import com.opencsv.CSVWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Generates Yandex Forms exports of any shape for the benchmarks:
+// "<question>" free-text columns, "<question> / <option>" checkbox columns and "<question> / Баллы" columns.
+// The content is seeded, so every run measures the same file.
+final class SyntheticExport {
+    private static final String[] FIXED_COLUMNS = {"ID", "Время создания", "ФИО", "Группа"};
+
+    final int questions;
+    final int optionsPerQuestion;
+    final int pointsPerQuestion;
+
+    SyntheticExport(int questions, int optionsPerQuestion, int pointsPerQuestion) {
+        this.questions = questions;
+        this.optionsPerQuestion = optionsPerQuestion;
+        this.pointsPerQuestion = pointsPerQuestion;
+    }
+
+    static String question(int index) {
+        return "Вопрос " + (index + 1) + ": насколько вам понравилось занятие?";
+    }
+
+    String[] headers() {
+        List<String> headers = new ArrayList<>(Arrays.asList(FIXED_COLUMNS));
+        for (int q = 0; q < questions; q++) {
+            headers.add(question(q));
+            for (int o = 0; o < optionsPerQuestion; o++) {
+                headers.add(question(q) + " / Вариант " + (o + 1));
+            }
+            for (int p = 0; p < pointsPerQuestion; p++) {
+                headers.add(question(q) + " / Баллы");
+            }
+        }
+        return headers.toArray(new String[0]);
+    }
+
+    String[] row(int index, Random random) {
+        List<String> row = new ArrayList<>();
+        row.add(String.valueOf(100000 + index));
+        row.add("2024-06-" + (10 + index % 20) + " 12:" + (10 + index % 50) + ":00");
+        row.add("Студентов" + index + " Студент Студентович");
+        row.add("32" + (index % 10) + "1");
+        for (int q = 0; q < questions; q++) {
+            row.add(random.nextInt(3) == 0 ? "" : "Свободный ответ номер " + random.nextInt(1000));
+            for (int o = 0; o < optionsPerQuestion; o++) {
+                row.add(random.nextBoolean() ? "Вариант " + (o + 1) : "");
+            }
+            for (int p = 0; p < pointsPerQuestion; p++) {
+                row.add(random.nextInt(4) == 0 ? "" : String.valueOf(random.nextInt(10)));
+            }
+        }
+        return row.toArray(new String[0]);
+    }
+
+    // CSVDataFetcher reads with FileReader, so the file is written in the platform charset
+    Path writeCsv(Path csv, int rows) throws IOException {
+        Random random = new Random(42);
+        try (CSVWriter writer = new CSVWriter(new FileWriter(csv.toFile()))) {
+            writer.writeNext(headers(), false);
+            for (int i = 0; i < rows; i++) {
+                writer.writeNext(row(i, random), false);
+            }
+        }
+        return csv;
+    }
+
+    // Hand-made style template: a table of questions with an [ОТВЕТ] under each, as a teacher would lay it out
+    byte[] template() throws IOException {
+        try (XWPFDocument document = new XWPFDocument()) {
+            XWPFParagraph title = document.createParagraph();
+            title.setAlignment(ParagraphAlignment.CENTER);
+            XWPFRun titleRun = title.createRun();
+            titleRun.setText("СПРАВКА");
+            titleRun.setBold(true);
+
+            document.createParagraph().createRun().setText("ФИО");
+            document.createParagraph().createRun().setText("Студент: " + WordTemplateProcessor.ANSWER_PLACEHOLDER);
+
+            XWPFTable table = document.createTable(questions, 2);
+            for (int q = 0; q < questions; q++) {
+                XWPFTableRow tableRow = table.getRow(q);
+                tableRow.getCell(0).setText(String.valueOf(q + 1));
+                XWPFTableCell answerCell = tableRow.getCell(1);
+                answerCell.setText(question(q));
+                answerCell.addParagraph().createRun().setText("Ответ: " + WordTemplateProcessor.ANSWER_PLACEHOLDER);
+            }
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            document.write(content);
+            return content.toByteArray();
+        }
+    }
+
+    Path writeTemplate(Path docx) throws IOException {
+        return Files.write(docx, template());
+    }
+
+    static Path tempDirectory() throws IOException {
+        return Files.createTempDirectory("yfh-bench");
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    deleteRecursively(entry);
+                } else {
+                    Files.delete(entry);
+                }
+            }
+        }
+        Files.delete(directory);
+    }
+
+    static PrintStream silence() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8));
+        return original;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,447 @@
+package ru.unidubna;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Headless entry point: CSV -> documents without Swing, for cron and servers.
+// stdout carries exactly one JSON line with the run summary; everything else goes to stderr.
+public class BatchCli {
+    static final int EXIT_OK = 0;
+    static final int EXIT_DOCUMENT_FAILURES = 1;
+    static final int EXIT_USAGE = 2;
+    static final int EXIT_FATAL = 3;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Использование: java -jar <jar> --csv <файл.csv> --out <папка> [параметры]",
+            "           или java -jar <jar> --watch <папка> --out <папка> [параметры]",
+            "           или java -jar <jar> --serve <порт> [параметры]",
+            "  --csv <файл>          выгрузка Яндекс Форм",
+            "  --watch <папка>       следить за CSV в папке и создавать справки для новых строк (до Ctrl+C);",
+            "                        на каждую порцию в stdout выводится строка JSON",
+            "  --serve <порт>        HTTP-сервис на 127.0.0.1: POST " + CertificateService.PATH + " с CSV (или формой с полями",
+            "                        template и csv, шаблон первым) возвращает ZIP со справками; на каждый запрос",
+            "                        в stdout выводится строка JSON",
+            "  --max-requests <N>    сколько запросов сервис обрабатывает одновременно, остальным 503 (по умолчанию 4)",
+            "  --out <папка>         папка для справок",
+            "  --template <файл>     шаблон Word (по умолчанию создаётся автоматически)",
+            "  --template-column <колонка>  выбирать шаблон для строки по значению этой колонки",
+            "  --template-for <значение>=<файл>  шаблон для строк с этим значением (можно повторять);",
+            "                        остальные строки получают --template",
+            "  --parallelism <N>     число потоков, 0 - по числу ядер (по умолчанию 0)",
+            "  --engine <poi|streaming>  способ записи документов (по умолчанию poi)",
+            "  --zip <имя.zip>       сложить все справки в один архив в папке --out",
+            "  --zip-level <0-9>     сжатие архива: 0 - без сжатия (по умолчанию), 1-9 - deflate",
+            "  --merge <имя.docx>    собрать все справки в один документ для печати, каждую с новой страницы",
+            "  --fsync <N>           записывать справки на диск до их появления в папке, пакетами по N (по умолчанию 0 - нет)",
+            "  --incremental         пропускать справки, для которых не изменились ни строка, ни шаблон",
+            "  --mapped              читать CSV целиком через отображение в память, параллельно (для больших выгрузок)",
+            "  --filter <выражение>  справки только для отобранных строк, например: Факультет = ИСАУ && Баллы >= 10,",
+            "                        ФИО in (Иванов Иван, Петров Пётр), ФИО in @список.txt, Группа ~ 41;",
+            "                        условия объединяются &&, ||, ! и скобками, имена и значения с пробелами по краям,",
+            "                        операторами или скобками берутся в двойные кавычки",
+            "  --stats               дополнительно записать в папку --out сводную статистику ответов ("
+                    + WordTemplateProcessor.STATISTICS_FILE_NAME + "), по отобранным строкам при --filter",
+            "Коды завершения: 0 - успех, 1 - часть документов не создана, 2 - неверные аргументы, 3 - ошибка обработки");
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args, System.out, System.err));
+    }
+
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        Arguments arguments;
+        try {
+            arguments = Arguments.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if (arguments.help) {
+            err.println(USAGE);
+            return EXIT_OK;
+        }
+
+        // the library code still prints progress to System.out; keep stdout for the summary only
+        PrintStream originalOut = System.out;
+        System.setOut(err);
+        long start = System.nanoTime();
+        try {
+            if (arguments.watchDirectory != null) {
+                watch(arguments, out, err);
+                return EXIT_OK;
+            }
+            if (arguments.servePort >= 0) {
+                serve(arguments, out, err);
+                return EXIT_OK;
+            }
+            GenerationReport report = process(arguments, err);
+            out.println(summary("ok", report, null, start));
+            return report.hasFailures() ? EXIT_DOCUMENT_FAILURES : EXIT_OK;
+        } catch (IOException | RuntimeException e) {
+            err.println("Ошибка: " + e.getMessage());
+            out.println(summary("error", null, e, start));
+            return EXIT_FATAL;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_OK;
+        } finally {
+            System.setOut(originalOut);
+        }
+    }
+
+    private static GenerationReport process(Arguments arguments, PrintStream err) throws IOException {
+        if (!new File(arguments.csvPath).exists()) {
+            throw new IOException("CSV файл не найден: " + arguments.csvPath);
+        }
+        checkTemplates(arguments);
+
+        RunMetrics metrics = new RunMetrics();
+        GenerationOptions options = options(arguments, err).setMetrics(metrics);
+
+        if (arguments.mapped) {
+            if (MappedCsvParser.supports(Charset.defaultCharset())) {
+                long start = System.nanoTime();
+                // as many threads as the generation gets
+                ForkJoinPool pool = new ForkJoinPool(options.effectiveParallelism());
+                RowStore rows;
+                try {
+                    rows = MappedCsvParser.parse(arguments.csvPath, Charset.defaultCharset(), pool);
+                } finally {
+                    pool.shutdownNow();
+                }
+                metrics.record(RunMetrics.Phase.CSV_READ, start);
+                GenerationReport report = report(WordTemplateProcessor.fillTemplate(arguments.templatePath,
+                        arguments.outputPath, rows.iterator(), options), err);
+                // the row store keeps only what the certificates need, the statistics take a pass of their own
+                writeStatistics(arguments, null, err);
+                return report;
+            }
+            err.println("Кодировка " + Charset.defaultCharset() + " не поддерживается --mapped, CSV читается обычным способом");
+        }
+
+        GenerationReport report;
+        ResponseStatistics statistics = null;
+        FileNames fileNames = new FileNames();
+        try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(arguments.csvPath, metrics, arguments.filter)) {
+            rows.setRejectedListener(fileNames.rejectedRows(rows.getSchema().getHeaders()));
+            if (arguments.stats) {
+                // counted from the records the generation reads
+                statistics = ResponseStatistics.counting(rows.getSchema());
+                rows.setSelectedListener(statistics::add);
+            }
+            report = report(WordTemplateProcessor.fillTemplate(arguments.templatePath, arguments.outputPath, rows, options,
+                    fileNames), err);
+            if (arguments.filter != null) {
+                err.println("Фильтр отобрал строк: " + report.getRows() + ", пропустил: " + rows.getRejected());
+            }
+        } catch (CSVDataFetcher.RowParseException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+        writeStatistics(arguments, statistics, err);
+        return report;
+    }
+
+    // statistics: already counted, or null to read the CSV for them
+    private static void writeStatistics(Arguments arguments, ResponseStatistics statistics, PrintStream err)
+            throws IOException {
+        if (!arguments.stats) {
+            return;
+        }
+        if (statistics == null) {
+            statistics = ResponseStatistics.collect(arguments.csvPath, arguments.parallelism, arguments.filter);
+        }
+        File outputDir = new File(arguments.outputPath);
+        outputDir.mkdirs();
+        File statisticsFile = new File(outputDir, WordTemplateProcessor.STATISTICS_FILE_NAME);
+        WordTemplateProcessor.writeStatistics(statistics, statisticsFile.getPath());
+        err.println("Сводная статистика: " + statisticsFile);
+    }
+
+    private static GenerationReport report(GenerationReport report, PrintStream err) {
+        for (GenerationReport.Failure failure : report.getFailures()) {
+            err.println("✗ " + failure);
+        }
+        return report;
+    }
+
+    private static void watch(Arguments arguments, PrintStream out, PrintStream err) throws IOException, InterruptedException {
+        Path directory = Paths.get(arguments.watchDirectory);
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Папка не найдена: " + directory);
+        }
+        checkTemplates(arguments);
+
+        err.println("Наблюдение за папкой " + directory + " (Ctrl+C для остановки)");
+        WatchFolderDaemon daemon = new WatchFolderDaemon(directory, arguments.templatePath, arguments.outputPath,
+                options(arguments, err), new WatchFolderDaemon.BatchListener() {
+                    @Override
+                    public void batchProcessed(Path csv, int firstRow, GenerationReport report) {
+                        for (GenerationReport.Failure failure : report.getFailures()) {
+                            err.println("✗ " + csv.getFileName() + ", строка " + (firstRow + failure.getRowNumber() - 1)
+                                    + " (" + failure.getStudentName() + "): " + failure.getError().getMessage());
+                        }
+                        String reportJson = report.toJson();
+                        out.println("{\"status\":\"ok\",\"file\":" + GenerationReport.jsonString(csv.toString())
+                                + ",\"firstRow\":" + firstRow + "," + reportJson.substring(1));
+                        out.flush();
+                    }
+                });
+        daemon.run();
+    }
+
+    private static void serve(Arguments arguments, PrintStream out, PrintStream err) throws IOException, InterruptedException {
+        checkTemplates(arguments);
+
+        GenerationOptions options = options(arguments, err).setListener(new GenerationListener() {
+            @Override
+            public void documentCreated(String outputPath, String studentName) {
+            }
+        });
+        CertificateService service = new CertificateService(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), arguments.servePort),
+                arguments.templatePath, options, arguments.maxRequests, (requestId, summaryJson) -> {
+                    out.println(summaryJson);
+                    out.flush();
+                });
+        Runtime.getRuntime().addShutdownHook(new Thread(service::close));
+        service.start();
+        InetSocketAddress address = service.getAddress();
+        err.println("Сервис запущен: http://" + address.getHostString() + ":" + address.getPort()
+                + CertificateService.PATH + " (Ctrl+C для остановки)");
+        new CountDownLatch(1).await();
+    }
+
+    private static void checkTemplates(Arguments arguments) throws IOException {
+        if (arguments.templatePath != null && !new File(arguments.templatePath).exists()) {
+            throw new IOException("Файл шаблона не найден: " + arguments.templatePath);
+        }
+        for (String routedTemplate : arguments.columnTemplates.values()) {
+            if (!new File(routedTemplate).exists()) {
+                throw new IOException("Файл шаблона не найден: " + routedTemplate);
+            }
+        }
+    }
+
+    // One cache per process: watch mode and the service reuse compiled templates across batches and requests
+    private static GenerationOptions options(Arguments arguments, PrintStream err) {
+        return new GenerationOptions()
+                .setTemplateCache(new TemplateCache())
+                .setTemplateRouting(arguments.templateColumn, arguments.columnTemplates)
+                .setParallelism(arguments.parallelism)
+                .setEngine(arguments.engine)
+                .setIncremental(arguments.incremental)
+                .setArchiveName(arguments.archiveName)
+                .setMergedName(arguments.mergedName)
+                .setCompressionLevel(arguments.compressionLevel)
+                .setSyncBatch(arguments.syncBatch)
+                .setListener(new GenerationListener() {
+                    @Override
+                    public void documentCreated(String outputPath, String studentName) {
+                        err.println("Создан документ: " + outputPath);
+                    }
+                });
+    }
+
+    static String summary(String status, GenerationReport report, Exception error, long start) {
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        StringBuilder json = new StringBuilder("{\"status\":\"").append(status).append('"');
+        if (report != null) {
+            String reportJson = report.toJson();
+            json.append(',').append(reportJson, 1, reportJson.length() - 1);
+        }
+        if (error != null) {
+            json.append(",\"error\":").append(GenerationReport.jsonString(String.valueOf(error.getMessage())));
+        }
+        return json.append(",\"runMillis\":").append(totalMillis).append('}').toString();
+    }
+
+    static final class Arguments {
+        String csvPath;
+        String watchDirectory;
+        String templatePath;
+        String outputPath;
+        int parallelism = 0;
+        GenerationOptions.Engine engine = GenerationOptions.Engine.POI;
+        boolean incremental;
+        boolean mapped;
+        boolean stats;
+        RowFilter filter;
+        int servePort = -1;
+        int maxRequests = 4;
+        String templateColumn;
+        Map<String, String> columnTemplates = new LinkedHashMap<>();
+        String archiveName;
+        String mergedName;
+        int compressionLevel = 0;
+        int syncBatch = 0;
+        boolean help;
+
+        static Arguments parse(String[] args) {
+            Arguments arguments = new Arguments();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--csv":
+                        arguments.csvPath = value(args, ++i, arg);
+                        break;
+                    case "--watch":
+                        arguments.watchDirectory = value(args, ++i, arg);
+                        break;
+                    case "--serve":
+                        arguments.servePort = intValue(args, ++i, arg);
+                        if (arguments.servePort > 65535) {
+                            throw new IllegalArgumentException("Неверный номер порта: " + arguments.servePort);
+                        }
+                        break;
+                    case "--max-requests":
+                        arguments.maxRequests = intValue(args, ++i, arg);
+                        if (arguments.maxRequests == 0) {
+                            throw new IllegalArgumentException("--max-requests должно быть не меньше 1");
+                        }
+                        break;
+                    case "--template":
+                        arguments.templatePath = value(args, ++i, arg);
+                        break;
+                    case "--template-column":
+                        arguments.templateColumn = value(args, ++i, arg);
+                        break;
+                    case "--template-for": {
+                        String route = value(args, ++i, arg);
+                        int separator = route.indexOf('=');
+                        if (separator <= 0 || separator == route.length() - 1) {
+                            throw new IllegalArgumentException("Ожидается <значение>=<файл> для " + arg + ": " + route);
+                        }
+                        arguments.columnTemplates.put(route.substring(0, separator).trim(), route.substring(separator + 1));
+                        break;
+                    }
+                    case "--out":
+                        arguments.outputPath = value(args, ++i, arg);
+                        break;
+                    case "--parallelism":
+                        arguments.parallelism = intValue(args, ++i, arg);
+                        break;
+                    case "--engine":
+                        arguments.engine = engineValue(value(args, ++i, arg));
+                        break;
+                    case "--zip":
+                        arguments.archiveName = value(args, ++i, arg);
+                        break;
+                    case "--merge":
+                        arguments.mergedName = value(args, ++i, arg);
+                        break;
+                    case "--zip-level":
+                        arguments.compressionLevel = intValue(args, ++i, arg);
+                        if (arguments.compressionLevel > 9) {
+                            throw new IllegalArgumentException("Уровень сжатия должен быть от 0 до 9: " + arguments.compressionLevel);
+                        }
+                        break;
+                    case "--fsync":
+                        arguments.syncBatch = intValue(args, ++i, arg);
+                        break;
+                    case "--incremental":
+                        arguments.incremental = true;
+                        break;
+                    case "--mapped":
+                        arguments.mapped = true;
+                        break;
+                    case "--filter":
+                        arguments.filter = RowFilter.parse(value(args, ++i, arg));
+                        break;
+                    case "--stats":
+                        arguments.stats = true;
+                        break;
+                    case "--help":
+                    case "-h":
+                        arguments.help = true;
+                        return arguments;
+                    default:
+                        throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                }
+            }
+
+            if ((arguments.templateColumn == null) != arguments.columnTemplates.isEmpty()) {
+                throw new IllegalArgumentException("--template-column и --template-for указываются вместе");
+            }
+            if (arguments.servePort >= 0) {
+                if (arguments.csvPath != null || arguments.watchDirectory != null || arguments.outputPath != null) {
+                    throw new IllegalArgumentException("--serve нельзя использовать вместе с --csv, --watch и --out");
+                }
+                if (arguments.archiveName != null || arguments.mergedName != null || arguments.incremental || arguments.mapped
+                        || arguments.stats || arguments.filter != null) {
+                    throw new IllegalArgumentException("--serve всегда отвечает архивом: --zip, --merge, --incremental, --mapped,"
+                            + " --stats и --filter к нему не применяются");
+                }
+                return arguments;
+            }
+            if ((arguments.csvPath == null) == (arguments.watchDirectory == null)) {
+                throw new IllegalArgumentException("Нужно указать либо --csv, либо --watch, либо --serve");
+            }
+            if (arguments.watchDirectory != null && arguments.archiveName != null) {
+                throw new IllegalArgumentException("--zip нельзя использовать вместе с --watch");
+            }
+            if (arguments.mergedName != null && (arguments.watchDirectory != null || arguments.archiveName != null)) {
+                throw new IllegalArgumentException("--merge нельзя использовать вместе с --watch и --zip");
+            }
+            if (arguments.mergedName != null && arguments.templateColumn != null) {
+                // one set of styles and numbering for all copies
+                throw new IllegalArgumentException("--merge собирает справки из одного шаблона, --template-column к нему не применяется");
+            }
+            if (arguments.watchDirectory != null && arguments.mapped) {
+                throw new IllegalArgumentException("--mapped нельзя использовать вместе с --watch");
+            }
+            if (arguments.watchDirectory != null && (arguments.stats || arguments.filter != null)) {
+                throw new IllegalArgumentException("--stats и --filter нельзя использовать вместе с --watch");
+            }
+            if (arguments.mapped && arguments.filter != null) {
+                // the mapped parser decodes only the columns the rows need
+                throw new IllegalArgumentException("--filter нельзя использовать вместе с --mapped");
+            }
+            if (arguments.outputPath == null) {
+                throw new IllegalArgumentException("Не указан --out");
+            }
+            return arguments;
+        }
+
+        static String value(String[] args, int index, String option) {
+            if (index >= args.length) {
+                throw new IllegalArgumentException("Не указано значение для " + option);
+            }
+            return args[index];
+        }
+
+        static int intValue(String[] args, int index, String option) {
+            String value = value(args, index, option);
+            try {
+                int number = Integer.parseInt(value);
+                if (number < 0) {
+                    throw new NumberFormatException();
+                }
+                return number;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Неверное число для " + option + ": " + value);
+            }
+        }
+
+        static GenerationOptions.Engine engineValue(String value) {
+            try {
+                return GenerationOptions.Engine.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Неизвестный способ записи: " + value);
+            }
+        }
+    }
+}
\ No newline at end of file
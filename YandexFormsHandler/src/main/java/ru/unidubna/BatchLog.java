@@ -0,0 +1,87 @@
+package ru.unidubna;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.util.Arrays;
+
+// Log shown by the GUI. Lines may come from any thread; they wait in a ring holding the last `capacity`
+// of them and reach the text area once per frame, as one document update with one caret move.
+// The text area keeps at most `capacity` lines as well, the oldest are dropped first.
+final class BatchLog {
+    private static final int FRAME_MILLIS = 40;
+
+    private final JTextArea area;
+    private final int capacity;
+    private final String[] ring;
+    // oldest waiting line
+    private int head;
+    private int size;
+
+    BatchLog(JTextArea area, int capacity) {
+        this.area = area;
+        this.capacity = capacity;
+        this.ring = new String[capacity];
+        new Timer(FRAME_MILLIS, e -> flush()).start();
+    }
+
+    synchronized void append(String line) {
+        ring[(head + size) % capacity] = line;
+        if (size < capacity) {
+            size++;
+        } else {
+            // overwrote the oldest line, which no frame showed
+            head = (head + 1) % capacity;
+        }
+    }
+
+    // On the EDT; called by the frame timer, or directly to show the lines at once
+    void flush() {
+        StringBuilder text = new StringBuilder();
+        boolean replace;
+        synchronized (this) {
+            if (size == 0) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                int slot = (head + i) % capacity;
+                text.append(ring[slot]).append('\n');
+                ring[slot] = null;
+            }
+            // the ring alone fills the area: nothing shown so far would stay
+            replace = size == capacity;
+            head = 0;
+            size = 0;
+        }
+
+        if (replace) {
+            area.setText(text.toString());
+        } else {
+            area.append(text.toString());
+        }
+        trim();
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+
+    // On the EDT
+    void clear() {
+        synchronized (this) {
+            Arrays.fill(ring, null);
+            head = 0;
+            size = 0;
+        }
+        area.setText("");
+    }
+
+    private void trim() {
+        // the text ends with '\n', so the last "line" is empty
+        int excess = area.getLineCount() - 1 - capacity;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            area.getDocument().remove(0, area.getLineStartOffset(excess));
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
\ No newline at end of file
@@ -1,112 +1,219 @@
 package ru.unidubna;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvException;
+import com.opencsv.exceptions.CsvValidationException;
 
 public class CSVDataFetcher {
-    private List<Map<String, String>> csvData = new ArrayList<>();
+    private List<Map<String, String>> csvData;
 
+    // Rows are kept column-wise in a RowStore; each row is still read as a Map
     public CSVDataFetcher(String csvPath) throws IOException, CsvException {
-        try (CSVReader reader = new CSVReader(new FileReader(csvPath))) {
-            List<String[]> allRows = reader.readAll();
-            if (allRows.isEmpty()) return;
-
-            String[] headers = allRows.get(0);
-            List<String[]> dataRows = allRows.subList(1, allRows.size());
-
-            // Model for the data retrieved from .csv file
-            Map<String, List<String>> questionToColumns = groupQuestions(headers);
-
-            for (String[] row : dataRows) {
-                Map<String, String> rowMap = new LinkedHashMap<>();
-                Set<String> processedQuestions = new HashSet<>();
-
-                // Handling every question for every row
-                for (Map.Entry<String, List<String>> entry : questionToColumns.entrySet()) {
-                    String mainQuestion = entry.getKey();
-                    List<String> columns = entry.getValue();
-
-                    StringBuilder answerBuilder = new StringBuilder();
-                    String pointsValue = "";
-                    boolean hasVariants = false;
-
-                    int mainColIndex = Arrays.asList(headers).indexOf(mainQuestion);
-                    if (mainColIndex != -1 && mainColIndex < row.length && !row[mainColIndex].isEmpty()) {
-                        answerBuilder.append(row[mainColIndex]);
-                        hasVariants = true;
-                    }
-
-                    for (String column : columns) {
-                        int colIndex = Arrays.asList(headers).indexOf(column);
-                        if (colIndex < row.length && !row[colIndex].isEmpty()) {
-                            String[] parts = column.split(Pattern.quote(" / "));
-                            if (parts.length > 1) {
-                                if (parts[1].equals("Баллы")) {
-                                    pointsValue = row[colIndex];
-                                } else {
-                                    // Append variant to answer
-                                    if (answerBuilder.length() > 0) {
-                                        answerBuilder.append(", ");
-                                    }
-                                    answerBuilder.append(parts[1]);
-                                    hasVariants = true;
-                                }
-                            }
-                        }
-                    }
-
-                    String finalAnswer = answerBuilder.toString();
-                    if (!pointsValue.isEmpty()) {
-                        if (!finalAnswer.isEmpty()) {
-                            finalAnswer += "; баллы - " + pointsValue;
-                        } else {
-                            // Only points, no variants
-                            finalAnswer = "баллы - " + pointsValue;
-                        }
-                    }
-
-                    rowMap.put(mainQuestion, finalAnswer);
-                    processedQuestions.add(mainQuestion);
-                }
+        try (RowIterator rows = stream(csvPath)) {
+            RowStore store = new RowStore(rows.getSchema());
+            while (rows.hasNext()) {
+                store.addRecord(rows.nextRecord());
+            }
+            csvData = store;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RowParseException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Lazy variant: rows are parsed one by one while the caller iterates, nothing is kept in memory
+    public static RowIterator stream(String csvPath) throws IOException {
+        return stream(csvPath, null);
+    }
+
+    // Same, timing record reading and row projection into the given metrics
+    public static RowIterator stream(String csvPath, RunMetrics metrics) throws IOException {
+        return stream(csvPath, metrics, null);
+    }
+
+    // Only the records the filter selects become rows; the others are never projected
+    public static RowIterator stream(String csvPath, RunMetrics metrics, RowFilter filter) throws IOException {
+        File file = new File(csvPath);
+        return stream(new FileInputStream(file), Charset.defaultCharset(), null, metrics, filter);
+    }
+
+    // Rows from any byte source, e.g. the appended tail of an export. Without a schema the first record
+    // is the header; with one, every record is data and is read against that schema.
+    static RowIterator stream(InputStream data, RowSchema schema, RunMetrics metrics) throws IOException {
+        return stream(data, Charset.defaultCharset(), schema, metrics, null);
+    }
+
+    // Same, decoding the bytes with the given charset instead of FileReader's
+    static RowIterator stream(InputStream data, Charset charset, RowSchema schema, RunMetrics metrics,
+                              RowFilter filter) throws IOException {
+        return new RowIterator(new CSVReader(new InputStreamReader(data, charset)), schema, metrics, filter);
+    }
 
-                // For fields without " / " in the header that weren't processed above
-                for (int i = 0; i < headers.length; i++) {
-                    String header = headers[i];
-                    if (!header.contains(" / ") && !processedQuestions.contains(header)) {
-                        if (i < row.length) {
-                            rowMap.put(header, row[i]);
-                        }
-                    }
+    public List<Map<String, String>> getCsvData() {
+        return csvData;
+    }
+
+    // Reads the next selected record in hasNext(), which can be asked any number of times; records the filter
+    // rejects on the way go to the rejection listener, before next() returns the row after them.
+    // I/O problems surface as UncheckedIOException, malformed records as RowParseException.
+    public static class RowIterator implements Iterator<Map<String, String>>, Closeable {
+        private final CSVReader reader;
+        private final RunMetrics metrics;
+        private final RowSchema schema;
+        private final Predicate<String[]> filter;
+        private Consumer<String[]> rejectedListener;
+        private Consumer<String[]> selectedListener;
+        private volatile int rejected;
+        // data records read, selected or not, and the number of the one in nextRow and of the last row returned
+        private int records;
+        private int nextRecordNumber;
+        private int recordNumber;
+        private String[] nextRow;
+        // nextRow holds what comes next, null meaning the end
+        private boolean fetched;
+
+        private RowIterator(CSVReader reader, RowSchema schema, RunMetrics metrics, RowFilter filter) throws IOException {
+            this.reader = reader;
+            this.metrics = metrics;
+            try {
+                if (schema != null) {
+                    this.schema = schema;
+                } else {
+                    String[] headers = readRecord();
+                    records = 0;
+                    this.schema = RowSchema.compile(headers == null ? new String[0] : headers);
+                    this.fetched = headers == null;
                 }
+                this.filter = filter == null ? null : filter.compile(this.schema.getHeaders());
+            } catch (IOException | UncheckedIOException | RowParseException e) {
+                reader.close();
+                throw e;
+            }
+        }
+
+        public RowSchema getSchema() {
+            return schema;
+        }
+
+        // Called with each record the filter leaves out, on the thread iterating
+        void setRejectedListener(Consumer<String[]> rejectedListener) {
+            this.rejectedListener = rejectedListener;
+        }
+
+        // Records the filter has left out so far; safe to poll from another thread
+        public int getRejected() {
+            return rejected;
+        }
 
-                csvData.add(rowMap);
+        // Called with each record the filter selects, every record without a filter, on the thread iterating
+        // as soon as the record is read
+        void setSelectedListener(Consumer<String[]> selectedListener) {
+            this.selectedListener = selectedListener;
+        }
+
+        // For a tail of a longer file: the records read before it, so that numbers count from the file start
+        void setRecordsBefore(int recordsBefore) {
+            records += recordsBefore;
+            recordNumber += recordsBefore;
+        }
+
+        // 1-based number of the row last returned among all data records of the source, those the filter
+        // left out included; 0 (or the records before) until the first row
+        int getRecordNumber() {
+            return recordNumber;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!fetched) {
+                nextRow = readSelected();
+                fetched = true;
             }
+            return nextRow != null;
+        }
 
-            // Test output
-            for (Map<String, String> tmpMap : csvData) {
-                System.out.println(tmpMap);
+        // Raw record of the next row, without projecting it
+        String[] nextRecord() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            fetched = false;
+            recordNumber = nextRecordNumber;
+            return nextRow;
         }
-    }
 
-    // Group by main question (to handle "<question> / <option or score>")
-    private Map<String, List<String>> groupQuestions(String[] headers) {
-        Map<String, List<String>> questionToColumns = new LinkedHashMap<>();
+        @Override
+        public Map<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long start = System.nanoTime();
+            Map<String, String> rowMap = schema.project(nextRow);
+            if (metrics != null) {
+                metrics.record(RunMetrics.Phase.ROW_PROJECTION, start);
+                metrics.rowProjected();
+            }
+            fetched = false;
+            recordNumber = nextRecordNumber;
+            return rowMap;
+        }
 
-        for (String header : headers) {
-            if (header.contains(" / ")) {
-                String[] parts = header.split(Pattern.quote(" / "));
-                String mainQuestion = parts[0];
-                questionToColumns.computeIfAbsent(mainQuestion, k -> new ArrayList<>()).add(header);
+        private String[] readSelected() {
+            String[] record = readRecord();
+            while (record != null && filter != null && !filter.test(record)) {
+                rejected++;
+                if (rejectedListener != null) {
+                    rejectedListener.accept(record);
+                }
+                record = readRecord();
+            }
+            nextRecordNumber = records;
+            if (record != null && selectedListener != null) {
+                selectedListener.accept(record);
             }
+            return record;
         }
 
-        return questionToColumns;
+        private String[] readRecord() {
+            long start = System.nanoTime();
+            try {
+                String[] record = reader.readNext();
+                if (record != null) {
+                    records++;
+                }
+                return record;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (CsvValidationException e) {
+                throw new RowParseException(e);
+            } finally {
+                if (metrics != null) {
+                    metrics.record(RunMetrics.Phase.CSV_READ, start);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
     }
 
-    public List<Map<String, String>> getCsvData() {
-        return csvData;
+    public static class RowParseException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private RowParseException(CsvException cause) {
+            super("Ошибка разбора CSV: " + cause.getMessage(), cause);
+        }
+
+        @Override
+        public synchronized CsvException getCause() {
+            return (CsvException) super.getCause();
+        }
     }
 }
\ No newline at end of file
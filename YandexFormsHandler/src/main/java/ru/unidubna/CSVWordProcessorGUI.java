@@ -6,9 +6,17 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.opencsv.exceptions.CsvException;
 
 public class CSVWordProcessorGUI extends JFrame {
+    private static final String ARCHIVE_NAME = "справки.zip";
+    private static final String MERGED_NAME = "справки_для_печати.docx";
+    // lines kept in the log; a large batch logs a line per failed row
+    private static final int LOG_CAPACITY = 5000;
+
     private JTextField csvFileField;
     private JTextField templateFileField;
     private JTextField outputDirField;
@@ -16,9 +24,23 @@ public class CSVWordProcessorGUI extends JFrame {
     private JButton templateBrowseButton;
     private JButton outputBrowseButton;
     private JButton processButton;
+    private JButton cancelButton;
     private JTextArea logArea;
+    private BatchLog log;
     private JProgressBar progressBar;
     private JCheckBox useTemplateCheckbox;
+    private JSpinner parallelismSpinner;
+    private JCheckBox streamingEngineCheckbox;
+    private JCheckBox incrementalCheckbox;
+    private JCheckBox archiveCheckbox;
+    private JCheckBox mergedCheckbox;
+    private JCheckBox statisticsCheckbox;
+    private JTextField filterField;
+    // a template used in one run stays compiled for the next while the file is unchanged
+    private final TemplateCache templateCache = new TemplateCache();
+    // the thread running the batch, interrupted by Cancel; guarded by this
+    private Thread batchThread;
+    private volatile boolean cancelRequested;
 
     public CSVWordProcessorGUI() {
         initializeGUI();
@@ -27,7 +49,7 @@ public class CSVWordProcessorGUI extends JFrame {
     private void initializeGUI() {
         setTitle("CSV to Word Template Processor");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(600, 500);
+        setSize(600, 585);
         setLocationRelativeTo(null);
 
         // main panel
@@ -103,6 +125,58 @@ public class CSVWordProcessorGUI extends JFrame {
         outputBrowseButton.addActionListener(e -> browseOutputDirectory());
         panel.add(outputBrowseButton, gbc);
 
+        // how many documents are generated at once
+        gbc.gridx = 0; gbc.gridy = 4; gbc.anchor = GridBagConstraints.WEST;
+        panel.add(new JLabel("Потоков обработки:"), gbc);
+
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.NONE;
+        int cores = Runtime.getRuntime().availableProcessors();
+        parallelismSpinner = new JSpinner(new SpinnerNumberModel(cores, 1, Math.max(64, cores), 1));
+        panel.add(parallelismSpinner, gbc);
+
+        // text-only substitution straight in the .docx XML, without POI
+        gbc.gridx = 0; gbc.gridy = 5; gbc.gridwidth = 3;
+        streamingEngineCheckbox = new JCheckBox("Быстрая запись документов (без POI)");
+        panel.add(streamingEngineCheckbox, gbc);
+
+        // rerun on a grown export: only new and changed rows are written
+        gbc.gridy = 6;
+        incrementalCheckbox = new JCheckBox("Пропускать неизменившиеся справки");
+        panel.add(incrementalCheckbox, gbc);
+
+        // one file to hand over instead of a folder of documents
+        gbc.gridy = 7;
+        archiveCheckbox = new JCheckBox("Сохранить все справки одним архивом (" + ARCHIVE_NAME + ")");
+        panel.add(archiveCheckbox, gbc);
+
+        // for printing: every certificate in one document, each from a new page
+        gbc.gridy = 8;
+        mergedCheckbox = new JCheckBox("Все справки одним документом для печати (" + MERGED_NAME + ")");
+        panel.add(mergedCheckbox, gbc);
+        // one or the other
+        archiveCheckbox.addActionListener(e -> mergedCheckbox.setSelected(mergedCheckbox.isSelected() && !archiveCheckbox.isSelected()));
+        mergedCheckbox.addActionListener(e -> archiveCheckbox.setSelected(archiveCheckbox.isSelected() && !mergedCheckbox.isSelected()));
+
+        // per-question distributions and score totals for the whole export
+        gbc.gridy = 9;
+        statisticsCheckbox = new JCheckBox("Сводная статистика по ответам (" + WordTemplateProcessor.STATISTICS_FILE_NAME + ")");
+        panel.add(statisticsCheckbox, gbc);
+        gbc.gridwidth = 1;
+
+        // only some respondents: a group, a points threshold, a list of names
+        gbc.gridx = 0; gbc.gridy = 10; gbc.anchor = GridBagConstraints.WEST;
+        panel.add(new JLabel("Фильтр строк:"), gbc);
+
+        gbc.gridx = 1; gbc.gridwidth = 2; gbc.fill = GridBagConstraints.HORIZONTAL; gbc.weightx = 1.0;
+        filterField = new JTextField();
+        filterField.setToolTipText("<html>Пусто - все строки. Например: Факультет = ИСАУ &amp;&amp; Баллы &gt;= 10<br>"
+                + "ФИО in (Иванов Иван, Петров Пётр), ФИО in @список.txt, Группа ~ 41<br>"
+                + "Условия объединяются &amp;&amp;, ||, ! и скобками; имена с пробелами по краям,<br>"
+                + "операторами или скобками берутся в двойные кавычки</html>");
+        panel.add(filterField, gbc);
+        gbc.fill = GridBagConstraints.NONE; gbc.weightx = 0;
+        gbc.gridwidth = 1;
+
         return panel;
     }
 
@@ -113,6 +187,7 @@ public class CSVWordProcessorGUI extends JFrame {
         logArea = new JTextArea(10, 50);
         logArea.setEditable(false);
         logArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        log = new BatchLog(logArea, LOG_CAPACITY);
         JScrollPane scrollPane = new JScrollPane(logArea);
 
         panel.add(scrollPane, BorderLayout.CENTER);
@@ -127,8 +202,13 @@ public class CSVWordProcessorGUI extends JFrame {
         processButton.addActionListener(e -> processFiles());
         processButton.setPreferredSize(new Dimension(120, 30));
 
+        cancelButton = new JButton("Отмена");
+        cancelButton.addActionListener(e -> cancelProcessing());
+        cancelButton.setPreferredSize(new Dimension(120, 30));
+        cancelButton.setEnabled(false);
+
         JButton clearLogButton = new JButton("Очистить лог");
-        clearLogButton.addActionListener(e -> logArea.setText(""));
+        clearLogButton.addActionListener(e -> log.clear());
         clearLogButton.setPreferredSize(new Dimension(120, 30));
 
         progressBar = new JProgressBar();
@@ -136,6 +216,7 @@ public class CSVWordProcessorGUI extends JFrame {
         progressBar.setPreferredSize(new Dimension(200, 25));
 
         panel.add(processButton);
+        panel.add(cancelButton);
         panel.add(clearLogButton);
         panel.add(progressBar);
 
@@ -196,50 +277,96 @@ public class CSVWordProcessorGUI extends JFrame {
             return;
         }
 
-        // Processing in da dedicated thread
-        SwingWorker<Void, String> worker = new SwingWorker<Void, String>() {
-            @Override
-            protected Void doInBackground() throws Exception {
-                processFilesInBackground();
-                return null;
+        RowFilter filter = null;
+        if (!filterField.getText().trim().isEmpty()) {
+            try {
+                filter = RowFilter.parse(filterField.getText().trim());
+            } catch (IllegalArgumentException e) {
+                showError(e.getMessage());
+                return;
             }
+        }
+        RowFilter rowFilter = filter;
 
+        // Processing in da dedicated thread
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
             @Override
-            protected void process(java.util.List<String> chunks) {
-                for (String message : chunks) {
-                    logArea.append(message + "\n");
-                    logArea.setCaretPosition(logArea.getDocument().getLength());
+            protected Void doInBackground() throws Exception {
+                synchronized (CSVWordProcessorGUI.this) {
+                    batchThread = Thread.currentThread();
                 }
+                try {
+                    processFilesInBackground(rowFilter);
+                } finally {
+                    synchronized (CSVWordProcessorGUI.this) {
+                        batchThread = null;
+                        // SwingWorker threads are pooled: a late Cancel must not reach the next task
+                        Thread.interrupted();
+                    }
+                }
+                return null;
             }
 
             @Override
             protected void done() {
                 processButton.setEnabled(true);
-                progressBar.setValue(0);
-                progressBar.setString("Готово");
+                cancelButton.setEnabled(false);
+                progressBar.setIndeterminate(false);
 
                 try {
                     get(); // exception check
-                    publish("✓ Обработка завершена успешно!");
+                    progressBar.setString("Готово");
+                    log.append("✓ Обработка завершена успешно!");
                 } catch (Exception e) {
-                    publish("✗ Ошибка: " + e.getMessage());
-                    e.printStackTrace();
+                    if (cancelRequested) {
+                        progressBar.setString("Отменено");
+                        log.append("✗ Обработка отменена");
+                    } else {
+                        progressBar.setString("Ошибка");
+                        log.append("✗ Ошибка: " + e.getMessage());
+                        e.printStackTrace();
+                    }
                 }
+                log.flush();
             }
         };
 
+        cancelRequested = false;
         processButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        progressBar.setValue(0);
         progressBar.setIndeterminate(true);
         progressBar.setString("Обработка...");
-        logArea.setText("");
+        log.clear();
 
         worker.execute();
     }
 
-    private void processFilesInBackground() throws IOException, CsvException {
+    // On the EDT. The batch thread is interrupted: it stops reading rows, the workers are shut down
+    // and the sink drops the documents not yet complete; those already in the folder stay.
+    private void cancelProcessing() {
+        cancelRequested = true;
+        cancelButton.setEnabled(false);
+        progressBar.setString("Отмена...");
+        synchronized (this) {
+            if (batchThread != null) {
+                batchThread.interrupt();
+            }
+        }
+    }
+
+    // filter: null for every row
+    private void processFilesInBackground(RowFilter filter) throws IOException, CsvException {
         String csvPath = csvFileField.getText().trim();
         String templatePath = useTemplateCheckbox.isSelected() ? templateFileField.getText().trim() : null;
         String outputPath = outputDirField.getText().trim();
+        int parallelism = (Integer) parallelismSpinner.getValue();
+        GenerationOptions.Engine engine = streamingEngineCheckbox.isSelected()
+                ? GenerationOptions.Engine.STREAMING : GenerationOptions.Engine.POI;
+        boolean incremental = incrementalCheckbox.isSelected();
+        String archiveName = archiveCheckbox.isSelected() ? ARCHIVE_NAME : null;
+        String mergedName = mergedCheckbox.isSelected() ? MERGED_NAME : null;
+        boolean statistics = statisticsCheckbox.isSelected();
 
         if (!new File(csvPath).exists()) {
             throw new IOException("CSV файл не найден: " + csvPath);
@@ -249,21 +376,138 @@ public class CSVWordProcessorGUI extends JFrame {
             throw new IOException("Файл шаблона не найден: " + templatePath);
         }
 
+        log.append("Начинаем обработку...");
+        log.append("CSV файл: " + csvPath);
+        log.append("Шаблон: " + (templatePath != null ? templatePath : "автоматический"));
+        log.append("Папка сохранения: " + outputPath);
+        log.append("Потоков обработки: " + parallelism);
+        if (filter != null) {
+            log.append("Фильтр строк: " + filter);
+        }
+        log.append("------------------------");
+
+        // one quick pass over the bytes, so the bar can count rows from the start
+        long records = CsvBoundaryScanner.countRecords(Paths.get(csvPath));
+        int totalRows = (int) Math.min(Integer.MAX_VALUE, Math.max(0, records - 1));
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setIndeterminate(false);
+            progressBar.setMaximum(Math.max(1, totalRows));
+            progressBar.setValue(0);
+        });
+
+        log.append("Чтение CSV файла и создание Word документов...");
+        RunMetrics metrics = new RunMetrics();
+        AtomicInteger doneRows = new AtomicInteger();
+        GenerationOptions options = new GenerationOptions()
+                .setMetrics(metrics)
+                .setTemplateCache(templateCache)
+                .setParallelism(parallelism)
+                .setEngine(engine)
+                .setIncremental(incremental)
+                .setArchiveName(archiveName)
+                .setMergedName(mergedName)
+                .setListener(new GenerationListener() {
+                    @Override
+                    public void documentCreated(String outputPath, String studentName) {
+                        GenerationListener.super.documentCreated(outputPath, studentName);
+                        doneRows.incrementAndGet();
+                    }
+
+                    @Override
+                    public void documentSkipped(String outputPath, String studentName) {
+                        doneRows.incrementAndGet();
+                    }
+
+                    @Override
+                    public void documentFailed(int rowNumber, String studentName, Exception error) {
+                        GenerationListener.super.documentFailed(rowNumber, studentName, error);
+                        log.append("✗ Строка " + rowNumber + " (" + studentName + "): " + error.getMessage());
+                        doneRows.incrementAndGet();
+                    }
+                });
+
+        GenerationReport report;
+        int rejectedRows;
+        ResponseStatistics responseStatistics = null;
+        Timer progressTimer = null;
+        FileNames fileNames = new FileNames();
+        try {
+            try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(csvPath, metrics, filter)) {
+                rows.setRejectedListener(fileNames.rejectedRows(rows.getSchema().getHeaders()));
+                if (statistics) {
+                    // counted from the records the generation reads, no second pass over the CSV
+                    responseStatistics = ResponseStatistics.counting(rows.getSchema());
+                    rows.setSelectedListener(responseStatistics::add);
+                }
+                // rows left out by the filter count as done
+                progressTimer = new Timer(200, e -> showProgress(metrics, doneRows.get() + rows.getRejected(), totalRows));
+                progressTimer.start();
+                report = WordTemplateProcessor.fillTemplate(templatePath, outputPath, rows, options, fileNames);
+                rejectedRows = rows.getRejected();
+            } catch (CSVDataFetcher.RowParseException e) {
+                throw e.getCause();
+            }
+        } catch (IOException | CsvException | RuntimeException e) {
+            if (cancelRequested && archiveName == null && mergedName == null) {
+                log.append("Документы, созданные до отмены, оставлены в папке");
+            }
+            throw e;
+        } finally {
+            if (progressTimer != null) {
+                progressTimer.stop();
+            }
+        }
+
+        int allRows = report.getRows() + rejectedRows;
         SwingUtilities.invokeLater(() -> {
-            logArea.append("Начинаем обработку...\n");
-            logArea.append("CSV файл: " + csvPath + "\n");
-            logArea.append("Шаблон: " + (templatePath != null ? templatePath : "автоматический") + "\n");
-            logArea.append("Папка сохранения: " + outputPath + "\n");
-            logArea.append("------------------------\n");
+            progressBar.setMaximum(Math.max(1, allRows));
+            progressBar.setValue(allRows);
         });
+        if (filter != null) {
+            log.append("Фильтр отобрал строк: " + report.getRows() + ", пропустил: " + rejectedRows);
+        }
+        log.append(report.toString());
+        log.append(String.format("Скорость: %.1f док/с, время на документ: медиана %d мс, 99%% - %d мс",
+                metrics.getDocumentsPerSecond(),
+                metrics.getLatencyPercentileMicros(0.5) / 1000, metrics.getLatencyPercentileMicros(0.99) / 1000));
+        if (metrics.getFirstDocumentMillis() >= 0) {
+            log.append(String.format("Первая справка: через %d мс после начала обработки, %.1f с после запуска программы",
+                    metrics.getFirstDocumentMillis(), metrics.getFirstDocumentSinceLaunchMillis() / 1000.0));
+        }
+        log.append("Подробные замеры: " + new File(outputPath, WordTemplateProcessor.METRICS_FILE_NAME));
+        if (statistics) {
+            File statisticsFile = new File(outputPath, WordTemplateProcessor.STATISTICS_FILE_NAME);
+            new File(outputPath).mkdirs();
+            WordTemplateProcessor.writeStatistics(responseStatistics, statisticsFile.getPath());
+            log.append("Сводная статистика: " + statisticsFile);
+        }
+        // a cancel that came after the last document isn't a finished run either
+        if (cancelRequested) {
+            throw new InterruptedIOException("Обработка отменена");
+        }
+        if (report.hasFailures()) {
+            throw new IOException("Не удалось создать документов: " + report.getFailures().size());
+        }
 
-        SwingUtilities.invokeLater(() -> logArea.append("Чтение CSV файла...\n"));
-        CSVDataFetcher csvDataFetcher = new CSVDataFetcher(csvPath);
+        log.append("Обработка завершена!");
+    }
 
-        SwingUtilities.invokeLater(() -> logArea.append("Создание Word документов...\n"));
-        WordTemplateProcessor.fillTemplate(templatePath, outputPath, csvDataFetcher.getCsvData());
+    // Runs on the EDT while the batch is going; the remaining time is estimated from the rows done
+    private void showProgress(RunMetrics metrics, int doneRows, int totalRows) {
+        if (cancelRequested) {
+            return;
+        }
+        progressBar.setValue(Math.min(doneRows, progressBar.getMaximum()));
+        if (doneRows == 0) {
+            return;
+        }
 
-        SwingUtilities.invokeLater(() -> logArea.append("Обработка завершена!\n"));
+        String status = String.format("%d из %d, %.1f док/с", doneRows, totalRows, metrics.getDocumentsPerSecond());
+        if (doneRows < totalRows) {
+            long remainingSeconds = (long) (metrics.getElapsedMillis() / 1000.0 * (totalRows - doneRows) / doneRows);
+            status += String.format(", осталось ~%d:%02d", remainingSeconds / 60, remainingSeconds % 60);
+        }
+        progressBar.setString(status);
     }
 
     private void showError(String message) {
@@ -271,6 +515,7 @@ public class CSVWordProcessorGUI extends JFrame {
     }
 
     public static void main(String[] args) {
+        startWarmUp();
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -281,4 +526,19 @@ public class CSVWordProcessorGUI extends JFrame {
             new CSVWordProcessorGUI().setVisible(true);
         });
     }
+
+    // While the user is choosing files, the document classes get loaded in the background,
+    // so the first run doesn't start with that pause. A failure here only costs the head start.
+    private static void startWarmUp() {
+        Thread warmUp = new Thread(() -> {
+            try {
+                WordTemplateProcessor.warmUp();
+            } catch (IOException | RuntimeException e) {
+                // the real run reports its own errors
+            }
+        }, "poi-warmup");
+        warmUp.setDaemon(true);
+        warmUp.setPriority(Thread.MIN_PRIORITY);
+        warmUp.start();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package ru.unidubna;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+
+// Training run for the AppCDS archive of the cds profile in pom.xml: the JVM dumps every class loaded
+// here, so it goes through what a real session loads - the warm-up, CSV reading with a filter, both
+// engines, the archive and merged sinks, the statistics and the window. Usage: CdsTraining <файл.csv> <папка>
+public class CdsTraining {
+    public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+        String csvPath = args[0];
+        String outputDirectory = args[1];
+
+        WordTemplateProcessor.warmUp();
+        run("--csv", csvPath, "--out", outputDirectory, "--filter", "Баллы >= 0 || ФИО ~ а", "--stats");
+        run("--csv", csvPath, "--out", outputDirectory, "--engine", "streaming", "--zip", "training.zip", "--zip-level", "6");
+        run("--csv", csvPath, "--out", outputDirectory, "--merge", "training.docx");
+        trainWindow();
+        // the window's log timer would keep the event thread, and with it the JVM, running
+        System.exit(0);
+    }
+
+    private static void run(String... args) {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        int exitCode = BatchCli.run(args, discard, discard);
+        if (exitCode != BatchCli.EXIT_OK) {
+            throw new IllegalStateException("Обучающий запуск завершился с кодом " + exitCode + ": " + String.join(" ", args));
+        }
+    }
+
+    // The window is built as on start, without being shown, and a file chooser with it. A frame needs
+    // a display: on a build machine without one only the window class itself is loaded.
+    private static void trainWindow() throws ClassNotFoundException, InterruptedException {
+        Class.forName(CSVWordProcessorGUI.class.getName(), false, CdsTraining.class.getClassLoader());
+        if (GraphicsEnvironment.isHeadless()) {
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                try {
+                    UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+                } catch (Exception e) {
+                    // the window falls back to the default look as well
+                }
+                CSVWordProcessorGUI window = new CSVWordProcessorGUI();
+                window.pack();
+                window.dispose();
+                JFileChooser fileChooser = new JFileChooser();
+                fileChooser.setFileFilter(new FileNameExtensionFilter("CSV файлы", "csv"));
+            });
+        } catch (InvocationTargetException e) {
+            // the event thread may be left running, so exit here rather than throw past it
+            e.getCause().printStackTrace();
+            System.exit(1);
+        }
+    }
+}
\ No newline at end of file
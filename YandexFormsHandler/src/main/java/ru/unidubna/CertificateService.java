@@ -0,0 +1,412 @@
+package ru.unidubna;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Local HTTP mode for other tools: POST /certificates with an export, get back a ZIP of the documents.
+// The body is either the CSV itself or multipart/form-data with a "csv" part and an optional "template"
+// part before it. Rows are parsed straight from the request and every finished document is written
+// into the response, so the first entries arrive while the rest of the batch is still being generated.
+// The archive ends with report.json: the run summary, including per-request timing.
+public class CertificateService implements Closeable {
+    static final String PATH = "/certificates";
+    static final String REPORT_ENTRY = "report.json";
+    private static final Pattern BOUNDARY_PATTERN = Pattern.compile("boundary=(?:\"([^\"]+)\"|([^;\\s]+))");
+    private static final Pattern PART_NAME_PATTERN = Pattern.compile("(?:^|;)\\s*name=\"([^\"]*)\"");
+    private static final Pattern CHARSET_PATTERN = Pattern.compile("(?i)charset=(?:\"([^\"]+)\"|([^;\\s]+))");
+
+    public interface RequestListener {
+        // summaryJson is the same line that ends the archive as report.json
+        void requestFinished(long requestId, String summaryJson);
+    }
+
+    private final HttpServer server;
+    private final String templatePath;
+    private final GenerationOptions options;
+    private final RequestListener listener;
+    private final Semaphore requestSlots;
+    private final ExecutorService requestExecutor;
+    // shared by all requests, so concurrent requests don't multiply the document threads
+    private final ExecutorService documentExecutor;
+    private final boolean ownDocumentExecutor;
+    // uploaded templates are matched by content, so a template sent with every request is compiled once
+    private final TemplateCache templateCache;
+    private final AtomicLong requestIds = new AtomicLong();
+
+    // Requests beyond maxRequests get 503 at once instead of queueing
+    public CertificateService(InetSocketAddress address, String templatePath, GenerationOptions options, int maxRequests,
+                              RequestListener listener) throws IOException {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("Число одновременных запросов должно быть не меньше 1: " + maxRequests);
+        }
+        if (options.getArchiveName() != null || options.isIncremental()) {
+            throw new IllegalArgumentException("Сервис отвечает архивом: --zip и --incremental к нему не применяются");
+        }
+        this.templatePath = templatePath;
+        this.options = options;
+        this.listener = listener;
+        this.requestSlots = new Semaphore(maxRequests);
+        // a couple of spare threads, so refusals are sent while every slot is busy
+        this.requestExecutor = Executors.newFixedThreadPool(maxRequests + 2, runnable -> {
+            Thread thread = new Thread(runnable, "http-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ownDocumentExecutor = options.getExecutor() == null;
+        this.documentExecutor = ownDocumentExecutor
+                ? Executors.newFixedThreadPool(options.effectiveParallelism(), WordTemplateProcessor::newWorkerThread)
+                : options.getExecutor();
+
+        this.templateCache = options.getTemplateCache() != null ? options.getTemplateCache() : new TemplateCache();
+
+        this.server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(requestExecutor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        requestExecutor.shutdownNow();
+        if (ownDocumentExecutor) {
+            documentExecutor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        long requestId = requestIds.incrementAndGet();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "Поддерживается только POST", start);
+                return;
+            }
+            if (!requestSlots.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "Сервис занят, повторите запрос позже", start);
+                return;
+            }
+            try {
+                serve(exchange, requestId, start);
+            } finally {
+                requestSlots.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client went away or the response broke midway; nothing more can be sent
+            System.err.println("Запрос " + requestId + " прерван: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange, long requestId, long start) throws IOException {
+        Path workDirectory = Files.createTempDirectory("spravki-");
+        try {
+            InputStream csv;
+            Charset csvCharset;
+            String requestTemplate = templatePath;
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+                try {
+                    MultipartReader form = new MultipartReader(exchange.getRequestBody(), boundary(contentType));
+                    MultipartReader.Part part;
+                    while ((part = form.nextPart()) != null && !"csv".equals(part.name)) {
+                        if ("template".equals(part.name)) {
+                            Path template = workDirectory.resolve("template.docx");
+                            Files.copy(part.body, template);
+                            requestTemplate = template.toString();
+                        }
+                    }
+                    if (part == null) {
+                        throw new IOException("В форме нет поля csv");
+                    }
+                    csv = part.body;
+                    csvCharset = charset(part.contentType);
+                } catch (IOException e) {
+                    sendError(exchange, 400, e.getMessage(), start);
+                    return;
+                }
+            } else {
+                csv = exchange.getRequestBody();
+                try {
+                    csvCharset = charset(contentType);
+                } catch (IOException e) {
+                    sendError(exchange, 400, e.getMessage(), start);
+                    return;
+                }
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"spravki.zip\"");
+            exchange.getResponseHeaders().set("X-Request-Id", String.valueOf(requestId));
+            exchange.sendResponseHeaders(200, 0);
+
+            String summary = generate(csv, csvCharset, requestTemplate, workDirectory, exchange.getResponseBody(), requestId, start);
+            listener.requestFinished(requestId, summary);
+        } finally {
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    // Writes the archive into the response; generation errors end up in report.json rather than an exception
+    private String generate(InputStream csv, Charset csvCharset, String requestTemplate, Path workDirectory,
+                            OutputStream response, long requestId, long start) throws IOException {
+        RunMetrics metrics = new RunMetrics();
+        try (DocumentSink sink = DocumentSink.zip(response, "запрос " + requestId, options.getCompressionLevel())) {
+            GenerationOptions requestOptions = new GenerationOptions()
+                    .setParallelism(options.getParallelism())
+                    .setEngine(options.getEngine())
+                    .setExecutor(documentExecutor)
+                    .setTemplateCache(templateCache)
+                    .setTemplateRouting(options.getTemplateColumn(), options.getColumnTemplates())
+                    .setListener(options.getListener())
+                    .setMetrics(metrics)
+                    .setSink(sink);
+
+            GenerationReport report = null;
+            Exception error = null;
+            try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(csv, csvCharset, null, metrics, null)) {
+                report = WordTemplateProcessor.fillTemplate(requestTemplate, workDirectory.toString(), rows, requestOptions);
+            } catch (CSVDataFetcher.RowParseException e) {
+                error = new IOException(e.getMessage(), e.getCause());
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+
+            String summary = BatchCli.summary(error == null ? "ok" : "error", report, error, start);
+            summary = "{\"request\":" + requestId + "," + summary.substring(1);
+            try (OutputStream entry = sink.open(REPORT_ENTRY)) {
+                entry.write(summary.getBytes(StandardCharsets.UTF_8));
+            }
+            return summary;
+        }
+    }
+
+    private static String boundary(String contentType) throws IOException {
+        Matcher matcher = BOUNDARY_PATTERN.matcher(contentType);
+        if (!matcher.find()) {
+            throw new IOException("В Content-Type нет boundary");
+        }
+        return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+    }
+
+    // The charset parameter of a Content-Type, UTF-8 when there is none
+    static Charset charset(String contentType) throws IOException {
+        Matcher matcher = contentType == null ? null : CHARSET_PATTERN.matcher(contentType);
+        if (matcher == null || !matcher.find()) {
+            return StandardCharsets.UTF_8;
+        }
+        String name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new IOException("Неизвестная кодировка CSV: " + name);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message, long start) throws IOException {
+        byte[] body = (BatchCli.summary("error", null, new IOException(message), start) + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Не удалось удалить " + directory + ": " + e.getMessage());
+        }
+    }
+
+    // multipart/form-data read part by part as it arrives; a part's body ends at the next delimiter
+    static final class MultipartReader {
+        private static final int MAX_HEADER_LINE = 8 * 1024;
+
+        private final InputStream in;
+        // "\r\n--boundary"; '\r' never occurs in a boundary, so a failed match can restart only at a new '\r'
+        private final byte[] delimiter;
+        private PartStream current;
+        private boolean finished;
+
+        MultipartReader(InputStream in, String boundary) {
+            this.in = new BufferedInputStream(in, 64 * 1024);
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            // the first delimiter has no CRLF in front: the preamble is read as if it had just been seen
+            this.current = new PartStream(2);
+        }
+
+        // Next part, skipping whatever is left of the previous one; null after the last
+        Part nextPart() throws IOException {
+            current.skipRest();
+            if (finished) {
+                return null;
+            }
+
+            int first = in.read();
+            int second = in.read();
+            if (first == '-' && second == '-') {
+                finished = true;
+                return null;
+            }
+            if (first != '\r' || second != '\n') {
+                throw new IOException("Неверный формат multipart/form-data");
+            }
+
+            String name = null;
+            String contentType = null;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                String lowerCase = line.toLowerCase(Locale.ROOT);
+                if (lowerCase.startsWith("content-disposition:")) {
+                    Matcher matcher = PART_NAME_PATTERN.matcher(line.substring(line.indexOf(':') + 1));
+                    if (matcher.find()) {
+                        name = matcher.group(1);
+                    }
+                } else if (lowerCase.startsWith("content-type:")) {
+                    contentType = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+
+            current = new PartStream(0);
+            return new Part(name, contentType, current);
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Запрос оборвался в заголовке части формы");
+                }
+                if (line.size() == MAX_HEADER_LINE) {
+                    throw new IOException("Слишком длинный заголовок части формы");
+                }
+                line.write(b);
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        static final class Part {
+            final String name;
+            // null if the part has no Content-Type header
+            final String contentType;
+            final InputStream body;
+
+            private Part(String name, String contentType, InputStream body) {
+                this.name = name;
+                this.contentType = contentType;
+                this.body = body;
+            }
+        }
+
+        private final class PartStream extends InputStream {
+            private int matched;
+            // bytes that looked like the start of the delimiter but were data after all
+            private int replay;
+            private int replayEnd;
+            private int held = -1;
+            private boolean done;
+
+            PartStream(int matched) {
+                this.matched = matched;
+            }
+
+            @Override
+            public int read() throws IOException {
+                while (true) {
+                    if (replay < replayEnd) {
+                        return delimiter[replay++] & 0xFF;
+                    }
+                    if (held >= 0) {
+                        int b = held;
+                        held = -1;
+                        return b;
+                    }
+                    if (done) {
+                        return -1;
+                    }
+
+                    int b = in.read();
+                    if (b < 0) {
+                        throw new EOFException("Запрос оборвался посреди части формы");
+                    }
+                    if (b == (delimiter[matched] & 0xFF)) {
+                        if (++matched == delimiter.length) {
+                            done = true;
+                        }
+                        continue;
+                    }
+                    if (matched == 0) {
+                        return b;
+                    }
+
+                    replay = 0;
+                    replayEnd = matched;
+                    matched = 0;
+                    if (b == (delimiter[0] & 0xFF)) {
+                        matched = 1;
+                    } else {
+                        held = b;
+                    }
+                }
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int count = 0;
+                while (count < length) {
+                    int b = read();
+                    if (b < 0) {
+                        break;
+                    }
+                    buffer[offset + count++] = (byte) b;
+                    // hand over what is at hand rather than wait for more of a slow upload
+                    if (in.available() == 0 && replay == replayEnd && held < 0) {
+                        break;
+                    }
+                }
+                return count == 0 ? -1 : count;
+            }
+
+            void skipRest() throws IOException {
+                while (read() >= 0) {
+                    // discard
+                }
+            }
+
+            // the reader moves on to the next part, the request body stays open
+            @Override
+            public void close() throws IOException {
+                skipRest();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+package ru.unidubna;
+
+import org.apache.poi.xwpf.usermodel.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A Word template read and analysed once: the raw .docx bytes stay in memory,
+// and the position of every question and [ОТВЕТ] placeholder is known up front.
+public final class CompiledTemplate {
+    private final byte[] content;
+    // [container][paragraph] texts, containers in the order the document is searched
+    private final String[][] paragraphTexts;
+    private final Map<List<String>, Binding> bindings = new ConcurrentHashMap<>();
+    private volatile StreamingTemplate streamingTemplate;
+
+    private CompiledTemplate(byte[] content, String[][] paragraphTexts) {
+        this.content = content;
+        this.paragraphTexts = paragraphTexts;
+    }
+
+    public static CompiledTemplate load(String templatePath) throws IOException {
+        return fromBytes(Files.readAllBytes(Paths.get(templatePath)));
+    }
+
+    public static CompiledTemplate fromBytes(byte[] content) throws IOException {
+        try (XWPFDocument document = new XWPFDocument(new ByteArrayInputStream(content))) {
+            List<List<XWPFParagraph>> containers = paragraphContainers(document);
+            String[][] paragraphTexts = new String[containers.size()][];
+
+            for (int c = 0; c < containers.size(); c++) {
+                List<XWPFParagraph> paragraphs = containers.get(c);
+                paragraphTexts[c] = new String[paragraphs.size()];
+                for (int p = 0; p < paragraphs.size(); p++) {
+                    paragraphTexts[c][p] = paragraphs.get(p).getText();
+                }
+            }
+
+            return new CompiledTemplate(content, paragraphTexts);
+        }
+    }
+
+    // Fresh, independent copy of the template for one document
+    public XWPFDocument newDocument() throws IOException {
+        return new XWPFDocument(new ByteArrayInputStream(content));
+    }
+
+    // Pre-rendered package for the POI-free output engine, built on first use
+    StreamingTemplate streaming() throws IOException {
+        StreamingTemplate result = streamingTemplate;
+        if (result == null) {
+            synchronized (this) {
+                result = streamingTemplate;
+                if (result == null) {
+                    result = StreamingTemplate.compile(content);
+                    streamingTemplate = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public byte[] getContent() {
+        return content.clone();
+    }
+
+    // Body paragraphs, then every table cell, then headers and footers
+    static List<List<XWPFParagraph>> paragraphContainers(XWPFDocument document) {
+        List<List<XWPFParagraph>> containers = new ArrayList<>();
+        containers.add(document.getParagraphs());
+
+        for (XWPFTable table : document.getTables()) {
+            for (XWPFTableRow row : table.getRows()) {
+                for (XWPFTableCell cell : row.getTableCells()) {
+                    containers.add(cell.getParagraphs());
+                }
+            }
+        }
+
+        for (XWPFHeader header : document.getHeaderList()) {
+            containers.add(header.getParagraphs());
+        }
+
+        for (XWPFFooter footer : document.getFooterList()) {
+            containers.add(footer.getParagraphs());
+        }
+
+        return containers;
+    }
+
+    // Where every [ОТВЕТ] goes for rows with the given question list.
+    // Questions are matched in list order, each taking the first free placeholder
+    // that follows its text in the same container; placeholders nobody claims get the default.
+    // Built once per question list, then reused for every row.
+    Binding bind(List<String> questions) {
+        Binding binding = bindings.get(questions);
+        if (binding == null) {
+            binding = computeBinding(questions);
+            bindings.putIfAbsent(new ArrayList<>(questions), binding);
+        }
+        return binding;
+    }
+
+    private Binding computeBinding(List<String> questions) {
+        String[][] owners = assignQuestions(paragraphTexts, questions);
+
+        // Flatten into slots in document order, one per placeholder paragraph
+        List<int[]> positions = new ArrayList<>();
+        List<String> slotQuestions = new ArrayList<>();
+        for (int c = 0; c < paragraphTexts.length; c++) {
+            for (int p = 0; p < paragraphTexts[c].length; p++) {
+                if (hasPlaceholder(paragraphTexts[c][p])) {
+                    positions.add(new int[]{c, p});
+                    slotQuestions.add(owners[c][p]);
+                }
+            }
+        }
+
+        int[] containers = new int[positions.size()];
+        int[] paragraphs = new int[positions.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            containers[i] = positions.get(i)[0];
+            paragraphs[i] = positions.get(i)[1];
+        }
+        return new Binding(containers, paragraphs, slotQuestions.toArray(new String[0]));
+    }
+
+    // For every paragraph: the question that claimed its placeholder, or null
+    static String[][] assignQuestions(String[][] paragraphTexts, List<String> questions) {
+        String[][] owners = new String[paragraphTexts.length][];
+        for (int c = 0; c < paragraphTexts.length; c++) {
+            owners[c] = new String[paragraphTexts[c].length];
+        }
+
+        for (String question : questions) {
+            bindQuestion(paragraphTexts, owners, question);
+        }
+        return owners;
+    }
+
+    private static void bindQuestion(String[][] paragraphTexts, String[][] owners, String question) {
+        for (int c = 0; c < paragraphTexts.length; c++) {
+            boolean questionFound = false;
+
+            for (int p = 0; p < paragraphTexts[c].length; p++) {
+                String paragraphText = paragraphTexts[c][p];
+                if (paragraphText == null) continue;
+
+                if (paragraphText.contains(question)) {
+                    questionFound = true;
+                    continue;
+                }
+
+                if (questionFound && owners[c][p] == null && hasPlaceholder(paragraphText)) {
+                    owners[c][p] = question;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean hasPlaceholder(String paragraphText) {
+        return paragraphText != null && paragraphText.contains(WordTemplateProcessor.ANSWER_PLACEHOLDER);
+    }
+
+    // Placeholder paragraphs in document order; question[i] is null where the default applies
+    static final class Binding {
+        final int[] containers;
+        final int[] paragraphs;
+        final String[] questions;
+
+        private Binding(int[] containers, int[] paragraphs, String[] questions) {
+            this.containers = containers;
+            this.paragraphs = paragraphs;
+            this.questions = questions;
+        }
+
+        int size() {
+            return questions.length;
+        }
+    }
+}
\ No newline at end of file
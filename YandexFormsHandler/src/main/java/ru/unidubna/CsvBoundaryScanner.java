@@ -0,0 +1,95 @@
+package ru.unidubna;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Finds where CSV records end in raw file bytes without decoding or parsing them.
+// A line break ends a record only outside quotes, with opencsv's defaults: '"' quotes,
+// '""' and '\"' are literal quotes. Works for UTF-8 and single-byte encodings alike,
+// since '"', '\\' and '\n' never occur inside a multi-byte character there.
+// An instance carries the quote state across calls, so a file can be fed in pieces.
+final class CsvBoundaryScanner {
+    private static final byte QUOTE = '"';
+    private static final byte ESCAPE = '\\';
+    private static final byte NEWLINE = '\n';
+
+    private boolean inQuotes;
+    private boolean escaped;
+
+    // Feeds the next byte; true if it is the '\n' that ends a record
+    boolean isRecordEnd(byte b) {
+        if (escaped) {
+            escaped = false;
+            if (b == QUOTE || b == ESCAPE) {
+                return false;
+            }
+        }
+        if (b == ESCAPE) {
+            escaped = true;
+        } else if (b == QUOTE) {
+            inQuotes = !inQuotes;
+        } else if (b == NEWLINE) {
+            return !inQuotes;
+        }
+        return false;
+    }
+
+    // Records in the file, the header included, without parsing them: enough for a progress bar.
+    // Lines ended by a lone '\r' are not told apart, such a file counts as fewer records.
+    static long countRecords(Path file) throws IOException {
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner();
+        long records = 0;
+        boolean unterminated = false;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (scanner.isRecordEnd(buffer[i])) {
+                        records++;
+                    }
+                }
+                unterminated = buffer[n - 1] != NEWLINE;
+            }
+        }
+        return unterminated ? records + 1 : records;
+    }
+
+    // Index just past the '\n' that ends the record starting at from, or -1 if it is not complete before to
+    static int recordEnd(byte[] data, int from, int to) {
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner();
+        for (int i = from; i < to; i++) {
+            if (scanner.isRecordEnd(data[i])) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Whether a record starting at from breaks a line with a '\r' no '\n' follows, as old Mac files do.
+    // A '\r' at to may still get its '\n' and doesn't count.
+    static boolean hasLoneCarriageReturn(byte[] data, int from, int to) {
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner();
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\r' && !scanner.inQuotes && i + 1 < to && data[i + 1] != NEWLINE) {
+                return true;
+            }
+            scanner.isRecordEnd(data[i]);
+        }
+        return false;
+    }
+
+    // Index just past the last complete record in [from, to), or from if there is none
+    static int lastRecordEnd(byte[] data, int from, int to) {
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner();
+        int end = from;
+        for (int i = from; i < to; i++) {
+            if (scanner.isRecordEnd(data[i])) {
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,30 @@
+package ru.unidubna;
+
+import jdk.jfr.*;
+
+// Flight Recorder event for one generated document:
+// java -XX:StartFlightRecording=filename=run.jfr ... then jfr print --events ru.unidubna.Document run.jfr
+@Name("ru.unidubna.Document")
+@Label("Document Generation")
+@Category("YandexFormsHandler")
+@StackTrace(false)
+final class DocumentEvent extends Event {
+    @Label("Row")
+    int rowNumber;
+
+    @Label("Student")
+    String studentName;
+
+    @Label("Output Path")
+    String outputPath;
+
+    @Label("Engine")
+    String engine;
+
+    @Label("Output Size")
+    @DataAmount
+    long outputBytes;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
\ No newline at end of file
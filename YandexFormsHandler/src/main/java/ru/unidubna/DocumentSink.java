@@ -0,0 +1,377 @@
+package ru.unidubna;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Where generated documents go. During a run open() is called from its writer thread only (see GenerationPipeline);
+// a document is complete once the returned stream is closed, it may show up at its location later.
+interface DocumentSink extends Closeable {
+    OutputStream open(String fileName) throws IOException;
+
+    // The copy-th document of the run, counted from 0; only a merged document tells them apart,
+    // see StreamingTemplate.writeBody()
+    default OutputStream open(String fileName, int copy) throws IOException {
+        return open(fileName);
+    }
+
+    // Human-readable place of the document, for logs and listeners
+    String location(String fileName);
+
+    // Instead of close() when the run was stopped halfway: nothing incomplete should be left looking finished
+    default void discard() throws IOException {
+        close();
+    }
+
+    // syncBatch 0: documents are not forced to disk, see DirectorySink; published (may be null) hears of
+    // every document that is in place
+    static DocumentSink directory(String outputDirectory, int syncBatch, PublishListener published) {
+        return new DirectorySink(outputDirectory, syncBatch, published);
+    }
+
+    interface PublishListener {
+        void published(String fileName) throws IOException;
+    }
+
+    static DocumentSink zip(File archive, int compressionLevel) throws IOException {
+        return new ZipSink(archive, null, archive.getPath(), compressionLevel);
+    }
+
+    // Archive written straight into a stream, e.g. an HTTP response; the stream is closed with the sink
+    static DocumentSink zip(OutputStream out, String name, int compressionLevel) throws IOException {
+        return new ZipSink(null, out, name, compressionLevel);
+    }
+
+    // Every document as a copy of the template body in one .docx, see StreamingTemplate.MergedDocument;
+    // open(fileName, copy) expects what StreamingTemplate.writeBody() wrote for that copy
+    static DocumentSink merged(File document, StreamingTemplate template) throws IOException {
+        return new MergedSink(document, template);
+    }
+
+    // One loose .docx per document. Each is written to a hidden temp file next to its final name and moved
+    // into place when complete, so a crash never leaves a truncated document under a real name.
+    // With syncBatch > 0 documents are also forced to disk before they are moved: syncBatch of them
+    // are synced and published together, with one sync of the directory. A document then shows up
+    // with its batch, at the latest on close(), and is only then reported to the PublishListener.
+    final class DirectorySink implements DocumentSink {
+        private static final String TEMP_SUFFIX = ".tmp";
+
+        private final String outputDirectory;
+        private final Path directory;
+        private final int syncBatch;
+        private final PublishListener listener;
+        // temp file -> final name, waiting for the next sync
+        private final Map<Path, Path> unpublished = new LinkedHashMap<>();
+
+        private DirectorySink(String outputDirectory, int syncBatch, PublishListener listener) {
+            if (syncBatch < 0) {
+                throw new IllegalArgumentException("Размер пакета синхронизации не может быть отрицательным: " + syncBatch);
+            }
+            this.outputDirectory = outputDirectory;
+            this.directory = Paths.get(outputDirectory);
+            this.syncBatch = syncBatch;
+            this.listener = listener;
+        }
+
+        @Override
+        public OutputStream open(String fileName) throws IOException {
+            Path temp = directory.resolve("." + fileName + TEMP_SUFFIX);
+            return new PendingFile(temp, directory.resolve(fileName));
+        }
+
+        @Override
+        public String location(String fileName) {
+            return outputDirectory + File.separator + fileName;
+        }
+
+        private synchronized void written(Path temp, Path target) throws IOException {
+            if (syncBatch == 0) {
+                publish(temp, target);
+                return;
+            }
+            unpublished.put(temp, target);
+            if (unpublished.size() >= syncBatch) {
+                publishBatch();
+            }
+        }
+
+        // A failed sync drops the whole batch: documents reported as created go missing, and an incremental
+        // run makes them again next time
+        private void publishBatch() throws IOException {
+            if (unpublished.isEmpty()) {
+                return;
+            }
+            try {
+                for (Path temp : unpublished.keySet()) {
+                    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                        channel.force(true);
+                    }
+                }
+                for (Map.Entry<Path, Path> file : unpublished.entrySet()) {
+                    publish(file.getKey(), file.getValue());
+                }
+                unpublished.clear();
+            } finally {
+                deleteUnpublished();
+            }
+            syncDirectory();
+        }
+
+        private void publish(Path temp, Path target) throws IOException {
+            try {
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            if (listener != null) {
+                listener.published(target.getFileName().toString());
+            }
+        }
+
+        // makes the renames durable; not every platform can open a directory for that
+        private void syncDirectory() {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+
+        private void deleteUnpublished() {
+            for (Path temp : unpublished.keySet()) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // left behind as a hidden .tmp
+                }
+            }
+            unpublished.clear();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            publishBatch();
+        }
+
+        // documents already published stay, the rest never appear
+        @Override
+        public synchronized void discard() {
+            deleteUnpublished();
+        }
+
+        // Buffered stream into the temp file; handed to written() only if every write succeeded
+        private final class PendingFile extends BufferedOutputStream {
+            private final Path temp;
+            private final Path target;
+            private boolean failed;
+            private boolean closed;
+
+            PendingFile(Path temp, Path target) throws IOException {
+                super(new FileOutputStream(temp.toFile()), 64 * 1024);
+                this.temp = temp;
+                this.target = target;
+            }
+
+            @Override
+            public synchronized void write(int b) throws IOException {
+                try {
+                    super.write(b);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    super.write(b, off, len);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    if (failed) {
+                        Files.deleteIfExists(temp);
+                    }
+                }
+                if (!failed) {
+                    written(temp, target);
+                }
+            }
+        }
+    }
+
+    // Every document as an entry of one archive. Documents are rendered in memory by the workers
+    // and appended under a lock, so the archive is written strictly sequentially.
+    // A file archive is built as <name>.part and renamed when closed.
+    final class ZipSink implements DocumentSink {
+        private final File archive;
+        private final File partFile;
+        private final String name;
+        private final int compressionLevel;
+        private final ZipOutputStream zip;
+
+        // compressionLevel 0 stores documents as they are (a .docx is already deflated), 1..9 deflates them again
+        private ZipSink(File archive, OutputStream out, String name, int compressionLevel) throws IOException {
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                throw new IllegalArgumentException("Уровень сжатия должен быть от 0 до 9: " + compressionLevel);
+            }
+            this.archive = archive;
+            this.partFile = archive == null ? null : new File(archive.getPath() + ".part");
+            this.name = name;
+            this.compressionLevel = compressionLevel;
+            if (archive != null) {
+                out = new FileOutputStream(partFile);
+            }
+            this.zip = new ZipOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            if (compressionLevel == 0) {
+                zip.setMethod(ZipOutputStream.STORED);
+            } else {
+                zip.setLevel(compressionLevel);
+            }
+        }
+
+        @Override
+        public OutputStream open(String fileName) {
+            return new ByteArrayOutputStream(32 * 1024) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        addEntry(fileName, buf, count);
+                    }
+                }
+            };
+        }
+
+        private synchronized void addEntry(String fileName, byte[] content, int length) throws IOException {
+            // names are unique already, see FileNames
+            ZipEntry entry = new ZipEntry(fileName);
+            if (compressionLevel == 0) {
+                // STORED entries need size and CRC before the data
+                CRC32 crc = new CRC32();
+                crc.update(content, 0, length);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(length);
+                entry.setCompressedSize(length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            zip.write(content, 0, length);
+            zip.closeEntry();
+        }
+
+        @Override
+        public String location(String fileName) {
+            return name + "!/" + fileName;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            zip.close();
+            if (archive != null) {
+                Files.move(partFile.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        // a file archive is dropped with its .part, an archive from an earlier run stays as it was
+        @Override
+        public synchronized void discard() throws IOException {
+            try {
+                zip.close();
+            } finally {
+                if (partFile != null) {
+                    Files.deleteIfExists(partFile.toPath());
+                }
+            }
+        }
+    }
+
+    // The documents follow each other in the order open() is called. Built as <name>.part and renamed
+    // when closed, like a file archive.
+    final class MergedSink implements DocumentSink {
+        private final File document;
+        private final File partFile;
+        private final StreamingTemplate.MergedDocument merged;
+
+        private MergedSink(File document, StreamingTemplate template) throws IOException {
+            this.document = document;
+            this.partFile = new File(document.getPath() + ".part");
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(partFile), 64 * 1024);
+            try {
+                this.merged = template.merged(out);
+            } catch (IOException | RuntimeException e) {
+                out.close();
+                Files.deleteIfExists(partFile.toPath());
+                throw e;
+            }
+        }
+
+        @Override
+        public OutputStream open(String fileName) {
+            throw new UnsupportedOperationException("Копия в общий документ добавляется вместе с её номером");
+        }
+
+        @Override
+        public synchronized OutputStream open(String fileName, int copy) throws IOException {
+            return merged.append(copy);
+        }
+
+        @Override
+        public String location(String fileName) {
+            return document.getPath() + " (" + fileName + ")";
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                merged.finish();
+                merged.close();
+            } catch (IOException | RuntimeException e) {
+                try {
+                    discard();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            Files.move(partFile.toPath(), document.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // a document from an earlier run stays as it was
+        @Override
+        public synchronized void discard() throws IOException {
+            try {
+                merged.close();
+            } finally {
+                Files.deleteIfExists(partFile.toPath());
+            }
+        }
+    }
+}
\ No newline at end of file
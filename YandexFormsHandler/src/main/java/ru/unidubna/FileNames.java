@@ -0,0 +1,77 @@
+package ru.unidubna;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// File names of the documents of a run. The student's name keeps Latin and Russian letters and digits,
+// runs of whitespace become '_', the same result as the former replaceAll() pair in one pass.
+// A name an earlier row already got is numbered: справка_X.docx, справка_X_2.docx, ... Names are
+// handed out on the thread reading rows, in row order, so a rerun gives every row the same file.
+final class FileNames {
+    private static final String PREFIX = "справка_";
+    private static final String EXTENSION = ".docx";
+    private static final String NAME_COLUMN = "ФИО";
+
+    // lower-cased, so names differing only in case don't meet on a case-insensitive file system
+    private final Set<String> issued = new HashSet<>();
+
+    // The names issued so far, for a batch that may fail and leave these as they were
+    FileNames copy() {
+        FileNames copy = new FileNames();
+        copy.issued.addAll(issued);
+        return copy;
+    }
+
+    String next(String studentName) {
+        String base = PREFIX + sanitize(studentName);
+        String candidate = base + EXTENSION;
+        for (int i = 2; !issued.add(candidate.toLowerCase(Locale.ROOT)); i++) {
+            candidate = base + "_" + i + EXTENSION;
+        }
+        return candidate;
+    }
+
+    // For records a RowFilter leaves out: their names are still taken in turn, so every selected row
+    // gets the same file as in a run over the whole export and never overwrites a namesake's
+    Consumer<String[]> rejectedRows(String[] headers) {
+        int column = Arrays.asList(headers).indexOf(NAME_COLUMN);
+        return record -> {
+            if (column >= 0 && column < record.length) {
+                next(record[column]);
+            }
+        };
+    }
+
+    static String sanitize(String name) {
+        StringBuilder safe = new StringBuilder(name.length());
+        boolean inWhitespace = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (isWhitespace(c)) {
+                if (!inWhitespace) {
+                    safe.append('_');
+                    inWhitespace = true;
+                }
+            } else if (isKept(c)) {
+                safe.append(c);
+                inWhitespace = false;
+            }
+            // anything else is dropped and doesn't end a whitespace run, as with the removal done first
+        }
+        return safe.toString();
+    }
+
+    // \s of java.util.regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // [a-zA-Zа-яА-Я0-9]: 'ё' and 'Ё' lie outside а-я and were never kept
+    private static boolean isKept(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= 'а' && c <= 'я') || (c >= 'А' && c <= 'Я')
+                || (c >= '0' && c <= '9');
+    }
+}
\ No newline at end of file
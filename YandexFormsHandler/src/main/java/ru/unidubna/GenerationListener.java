@@ -0,0 +1,18 @@
+package ru.unidubna;
+
+// Per-document callbacks; with parallel generation they arrive from worker threads
+public interface GenerationListener {
+    GenerationListener CONSOLE = new GenerationListener() {};
+
+    default void documentCreated(String outputPath, String studentName) {
+        System.out.println("Создан документ: " + outputPath + " для " + studentName);
+    }
+
+    // incremental run: the document from a previous run is still current
+    default void documentSkipped(String outputPath, String studentName) {
+    }
+
+    default void documentFailed(int rowNumber, String studentName, Exception error) {
+        System.err.println("Ошибка в строке " + rowNumber + " (" + studentName + "): " + error.getMessage());
+    }
+}
\ No newline at end of file
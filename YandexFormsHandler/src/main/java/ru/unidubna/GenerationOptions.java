@@ -0,0 +1,183 @@
+package ru.unidubna;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+// Settings for one WordTemplateProcessor.fillTemplate run
+public class GenerationOptions {
+    public enum Engine {
+        // full POI object model: every document is parsed, edited and serialised
+        POI,
+        // ZIP-level copy with pre-rendered XML, no POI per document
+        STREAMING
+    }
+
+    private int parallelism = 1;
+    private Engine engine = Engine.POI;
+    private ExecutorService executor;
+    private GenerationListener listener = GenerationListener.CONSOLE;
+    private boolean incremental;
+    private RunMetrics metrics;
+    private String archiveName;
+    private String mergedName;
+    private int compressionLevel;
+    private int syncBatch;
+    private DocumentSink sink;
+    private TemplateCache templateCache;
+    private String templateColumn;
+    private Map<String, String> columnTemplates = Collections.emptyMap();
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // Number of documents generated at the same time; 0 means one per available core
+    public GenerationOptions setParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("Число потоков не может быть отрицательным: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    int effectiveParallelism() {
+        return parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public GenerationOptions setEngine(Engine engine) {
+        this.engine = engine == null ? Engine.POI : engine;
+        return this;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // Run on a caller-owned executor instead of a pool created for the run; it is not shut down afterwards
+    public GenerationOptions setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public GenerationListener getListener() {
+        return listener;
+    }
+
+    public GenerationOptions setListener(GenerationListener listener) {
+        this.listener = listener == null ? GenerationListener.CONSOLE : listener;
+        return this;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    // Keep documents whose row and template are unchanged since the last run (see RunManifest)
+    public GenerationOptions setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    // Put every document into one .zip with this name in the output directory instead of loose files
+    public GenerationOptions setArchiveName(String archiveName) {
+        this.archiveName = archiveName;
+        return this;
+    }
+
+    public String getMergedName() {
+        return mergedName;
+    }
+
+    // Put every certificate into one .docx with this name in the output directory, one after another with
+    // page breaks, for printing. Built from the main template's body with the POI-free writer, whatever the engine
+    public GenerationOptions setMergedName(String mergedName) {
+        this.mergedName = mergedName;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    // Archive compression: 0 stores the documents as they are (the default, a .docx is already deflated), 1..9 deflates them
+    public GenerationOptions setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Уровень сжатия должен быть от 0 до 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getSyncBatch() {
+        return syncBatch;
+    }
+
+    // Loose documents: 0 (the default) leaves flushing them to the OS; N forces them to disk before they
+    // appear under their names, N at a time, so after a power cut a document is either whole or absent
+    public GenerationOptions setSyncBatch(int syncBatch) {
+        if (syncBatch < 0) {
+            throw new IllegalArgumentException("Размер пакета синхронизации не может быть отрицательным: " + syncBatch);
+        }
+        this.syncBatch = syncBatch;
+        return this;
+    }
+
+    DocumentSink getSink() {
+        return sink;
+    }
+
+    // Send documents to a caller-owned sink (e.g. a streamed archive) instead of the output directory;
+    // the run does not close it, so the caller may still add entries. Incremental mode is not applied.
+    GenerationOptions setSink(DocumentSink sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    public TemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    // Keep compiled templates across runs (watch mode, the service, the window); by default each run has its own
+    public GenerationOptions setTemplateCache(TemplateCache templateCache) {
+        this.templateCache = templateCache;
+        return this;
+    }
+
+    public String getTemplateColumn() {
+        return templateColumn;
+    }
+
+    public Map<String, String> getColumnTemplates() {
+        return columnTemplates;
+    }
+
+    // Pick the template per row by the value of a column, e.g. "Факультет" -> a template file per faculty.
+    // Values are compared trimmed; rows with other values get the main template.
+    public GenerationOptions setTemplateRouting(String column, Map<String, String> templatesByValue) {
+        this.templateColumn = column;
+        this.columnTemplates = column == null || templatesByValue == null
+                ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<>(templatesByValue));
+        return this;
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Collect into a caller-owned instance, e.g. to show live throughput; by default each run makes its own
+    public GenerationOptions setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+}
\ No newline at end of file
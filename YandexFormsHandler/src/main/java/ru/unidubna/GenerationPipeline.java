@@ -0,0 +1,235 @@
+package ru.unidubna;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+// The stages of a run after parsing: the thread reading rows submits them, generator workers render
+// each document into memory, and one writer thread puts the finished documents into the sink.
+// Both hand-overs are bounded: the reader blocks while maxGenerating rows are being rendered,
+// and workers block while as many rendered documents wait for the writer. So memory stays capped
+// however large the export is, and rendering overlaps the disk writes.
+// For a merged document the workers render only each row's copy of the template body, and the writer
+// appends them in submission order: a copy that finishes early waits for the ones before it. A row keeps
+// its place in maxGenerating until it is written, so at most that many copies wait.
+final class GenerationPipeline {
+    private static final Job END = new Job(null, null, null, 0, null, null);
+
+    private final GenerationOptions.Engine engine;
+    private final boolean merged;
+    private final DocumentSink sink;
+    private final RunManifest manifest;
+    private final RunMetrics metrics;
+    private final GenerationReport report;
+    private final GenerationListener listener;
+    // null: documents are rendered on the submitting thread, only writing runs separately
+    private final ExecutorService executor;
+    private final int maxGenerating;
+    private final Semaphore generating;
+    // holds every document that can be in generation, so workers never block on it after abort()
+    private final BlockingQueue<Job> rendered;
+    private final Thread writer;
+    private volatile boolean aborted;
+    // merged only: numbering by the submitting thread, and documents the writer holds until their turn
+    private int submitted;
+    private int nextToWrite;
+    private final Map<Integer, Job> waiting = new HashMap<>();
+
+    GenerationPipeline(GenerationOptions.Engine engine, boolean merged, DocumentSink sink, RunManifest manifest,
+                       RunMetrics metrics, GenerationReport report, GenerationListener listener, ExecutorService executor,
+                       int parallelism) {
+        this.engine = engine;
+        this.merged = merged;
+        this.sink = sink;
+        this.manifest = manifest;
+        this.metrics = metrics;
+        this.report = report;
+        this.listener = listener;
+        this.executor = executor;
+        this.maxGenerating = Math.max(1, parallelism) * 2;
+        this.generating = new Semaphore(maxGenerating);
+        this.rendered = new ArrayBlockingQueue<>(maxGenerating);
+        this.writer = new Thread(this::writeLoop, "docx-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // One row for rendering; blocks while the workers are full
+    void submit(Job job) throws InterruptedException {
+        job.sequence = submitted++;
+        if (executor == null) {
+            generate(job);
+            return;
+        }
+
+        generating.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    generate(job);
+                } finally {
+                    // a merged row is let go by the writer
+                    if (!merged) {
+                        generating.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            generating.release();
+            throw e;
+        }
+    }
+
+    // Waits until every submitted document is written or has failed
+    void finish() throws InterruptedException {
+        generating.acquire(maxGenerating);
+        generating.release(maxGenerating);
+        rendered.put(END);
+        writer.join();
+    }
+
+    // Stops the writer; documents still being rendered are dropped
+    void abort() {
+        aborted = true;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rendered.clear();
+    }
+
+    private void generate(Job job) {
+        job.event.begin();
+        job.start = System.nanoTime();
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(32 * 1024);
+            if (merged) {
+                WordTemplateProcessor.renderBody(job.template, job.rowData, job.sequence, content, metrics);
+            } else {
+                WordTemplateProcessor.render(job.template, engine, job.rowData, content, metrics);
+            }
+            job.content = content;
+        } catch (Exception e) {
+            if (!merged) {
+                failed(job, e);
+                return;
+            }
+            // reported by the writer in the row's turn, so later rows don't wait for it forever
+            job.error = e;
+        }
+
+        try {
+            rendered.put(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (!aborted) {
+                Job job = rendered.take();
+                if (job == END) {
+                    return;
+                }
+                if (merged) {
+                    writeInOrder(job);
+                } else {
+                    write(job);
+                }
+            }
+        } catch (InterruptedException e) {
+            // aborted
+        }
+    }
+
+    private void writeInOrder(Job job) {
+        waiting.put(job.sequence, job);
+        for (Job next = waiting.remove(nextToWrite); next != null; next = waiting.remove(nextToWrite)) {
+            nextToWrite++;
+            if (next.error != null) {
+                failed(next, next.error);
+            } else {
+                write(next);
+            }
+            if (executor != null) {
+                generating.release();
+            }
+        }
+    }
+
+    private void write(Job job) {
+        String outputPath = sink.location(job.fileName);
+        long writeStart = System.nanoTime();
+        try {
+            if (manifest != null) {
+                // counts once the sink has the document in place, which may be when the stream is closed
+                manifest.record(new File(outputPath), job.content.size(), job.rowHash);
+            }
+            try (OutputStream out = sink.open(job.fileName, job.sequence)) {
+                job.content.writeTo(out);
+            }
+            metrics.record(RunMetrics.Phase.FILE_WRITE, writeStart);
+            metrics.documentWritten();
+            job.event.succeeded = true;
+            report.documentCreated();
+            listener.documentCreated(outputPath, job.studentName);
+        } catch (Exception e) {
+            report.documentFailed(job.rowNumber, job.studentName, e);
+            listener.documentFailed(job.rowNumber, job.studentName, e);
+        } finally {
+            finished(job, outputPath);
+        }
+    }
+
+    private void failed(Job job, Exception error) {
+        report.documentFailed(job.rowNumber, job.studentName, error);
+        listener.documentFailed(job.rowNumber, job.studentName, error);
+        finished(job, sink.location(job.fileName));
+    }
+
+    // latency covers the whole way through, including the wait for the writer
+    private void finished(Job job, String outputPath) {
+        metrics.documentFinished(job.start);
+        DocumentEvent event = job.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rowNumber = job.rowNumber;
+            event.studentName = job.studentName;
+            event.outputPath = outputPath;
+            event.engine = engine.name();
+            event.outputBytes = job.content == null ? 0 : job.content.size();
+            event.commit();
+        }
+    }
+
+    // One row on its way to a document
+    static final class Job {
+        final CompiledTemplate template;
+        final String fileName;
+        final Map<String, String> rowData;
+        final int rowNumber;
+        final String studentName;
+        final String rowHash;
+        final DocumentEvent event = new DocumentEvent();
+        int sequence;
+        long start;
+        ByteArrayOutputStream content;
+        Exception error;
+
+        Job(CompiledTemplate template, String fileName, Map<String, String> rowData, int rowNumber, String studentName,
+            String rowHash) {
+            this.template = template;
+            this.fileName = fileName;
+            this.rowData = rowData;
+            this.rowNumber = rowNumber;
+            this.studentName = studentName;
+            this.rowHash = rowHash;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+package ru.unidubna;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Outcome of a fillTemplate run: how many rows went in, what came out and what failed
+public class GenerationReport {
+    private final RunMetrics metrics;
+    private final AtomicInteger rows = new AtomicInteger();
+    private final AtomicInteger documents = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+    private volatile long elapsedMillis;
+    private volatile long templateMillis;
+    private volatile long generateMillis;
+    private long readNanos;
+
+    GenerationReport(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void rowRead() {
+        rows.incrementAndGet();
+    }
+
+    void documentCreated() {
+        documents.incrementAndGet();
+    }
+
+    void documentSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    void documentFailed(int rowNumber, String studentName, Exception error) {
+        failures.add(new Failure(rowNumber, studentName, error));
+    }
+
+    // only the producer thread reads rows
+    void addReadNanos(long nanos) {
+        readNanos += nanos;
+    }
+
+    void setTemplateMillis(long templateMillis) {
+        this.templateMillis = templateMillis;
+    }
+
+    void setGenerateMillis(long generateMillis) {
+        this.generateMillis = generateMillis;
+    }
+
+    void finish(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public int getRows() {
+        return rows.get();
+    }
+
+    public int getDocuments() {
+        return documents.get();
+    }
+
+    // Rows whose document was left as is by an incremental run
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            List<Failure> sorted = new ArrayList<>(failures);
+            sorted.sort((a, b) -> Integer.compare(a.getRowNumber(), b.getRowNumber()));
+            return sorted;
+        }
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    // Time spent parsing CSV rows; with streaming input it overlaps document generation
+    public long getReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readNanos);
+    }
+
+    public long getTemplateMillis() {
+        return templateMillis;
+    }
+
+    public long getGenerateMillis() {
+        return generateMillis;
+    }
+
+    // One-line machine-readable summary
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"rows\":").append(getRows())
+                .append(",\"documents\":").append(getDocuments())
+                .append(",\"skipped\":").append(getSkipped())
+                .append(",\"failures\":").append(failures.size())
+                .append(",\"phases\":{")
+                .append("\"readMillis\":").append(getReadMillis())
+                .append(",\"templateMillis\":").append(templateMillis)
+                .append(",\"generateMillis\":").append(generateMillis)
+                .append(",\"totalMillis\":").append(elapsedMillis)
+                .append("},\"metrics\":").append(metrics.toJson())
+                .append(",\"errors\":[");
+        List<Failure> sorted = getFailures();
+        for (int i = 0; i < sorted.size(); i++) {
+            Failure failure = sorted.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"row\":").append(failure.getRowNumber())
+                    .append(",\"name\":").append(jsonString(failure.getStudentName()))
+                    .append(",\"message\":").append(jsonString(String.valueOf(failure.getError().getMessage())))
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    static String jsonString(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        quoted.append(ch);
+                    }
+                    break;
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Строк: " + getRows() + ", создано документов: " + getDocuments()
+                + (getSkipped() > 0 ? ", без изменений: " + getSkipped() : "")
+                + ", ошибок: " + failures.size() + ", время: " + elapsedMillis + " мс";
+    }
+
+    public static class Failure {
+        private final int rowNumber;
+        private final String studentName;
+        private final Exception error;
+
+        Failure(int rowNumber, String studentName, Exception error) {
+            this.rowNumber = rowNumber;
+            this.studentName = studentName;
+            this.error = error;
+        }
+
+        public int getRowNumber() {
+            return rowNumber;
+        }
+
+        public String getStudentName() {
+            return studentName;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "строка " + rowNumber + " (" + studentName + "): " + error.getMessage();
+        }
+    }
+}
\ No newline at end of file
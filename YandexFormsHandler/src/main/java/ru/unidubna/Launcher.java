@@ -0,0 +1,14 @@
+package ru.unidubna;
+
+// Main class of the shaded jar: with arguments it runs the headless batch,
+// without them it opens the window. The GUI class is only touched on that branch,
+// so batch runs never initialise AWT/Swing.
+public class Launcher {
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            BatchCli.main(args);
+        } else {
+            CSVWordProcessorGUI.main(args);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,325 @@
+package ru.unidubna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Reader for very large exports: the file is memory-mapped, cut into chunks at record
+// boundaries and the chunks are parsed and projected in parallel, then appended in file order.
+// Records are split into fields exactly as opencsv's CSVReader does with its defaults, working on
+// the raw bytes; only columns whose text reaches the row maps are decoded, option columns are
+// just checked for emptiness. The result equals CSVDataFetcher's rows for the same file.
+// Chunks are read straight from their mapping: only the bytes of decoded fields are copied.
+public final class MappedCsvParser {
+    private static final int MIN_CHUNK = 1 << 20;
+    private static final int MAX_CHUNK = 32 << 20;
+    private static final long SCAN_WINDOW = 256L << 20;
+    // stands in for a filled option cell: the projection only asks whether it is empty
+    private static final String PRESENT = "+";
+
+    private static final byte SEPARATOR = ',';
+    private static final byte QUOTE = '"';
+    private static final byte ESCAPE = '\\';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private MappedCsvParser() {
+    }
+
+    // UTF-8, or a single-byte charset that keeps ASCII in place (windows-1251, KOI8-R, ...)
+    public static boolean supports(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return true;
+        }
+        String special = ",\"\\\r\n";
+        return charset.newEncoder().maxBytesPerChar() == 1
+                && Arrays.equals(special.getBytes(charset), special.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Same charset as FileReader, on the common pool
+    public static RowStore parse(String csvPath) throws IOException {
+        return parse(csvPath, Charset.defaultCharset(), ForkJoinPool.commonPool());
+    }
+
+    public static RowStore parse(String csvPath, Charset charset, ForkJoinPool pool) throws IOException {
+        if (!supports(charset)) {
+            throw new IOException("Кодировка " + charset + " не поддерживается быстрым разбором CSV");
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(csvPath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkSize = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, size / (pool.getParallelism() * 4L) + 1));
+            long[] bounds = chunkBounds(channel, size, chunkSize);
+
+            // The header comes first, on this thread: it decides which columns the chunks decode
+            ByteBuffer firstChunk = map(channel, bounds[0], bounds[1]);
+            RecordParser headerParser = new RecordParser(firstChunk, 0, charset, null, bounds.length == 2);
+            String[] headers = headerParser.next();
+            RowSchema schema = RowSchema.compile(headers == null ? new String[0] : headers);
+            RowStore store = new RowStore(schema);
+            if (headers == null) {
+                return store;
+            }
+
+            byte[] usage = schema.columnUsage();
+            List<Future<List<String[]>>> chunks = new ArrayList<>();
+            int firstDataOffset = headerParser.position();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                boolean last = i + 2 == bounds.length;
+                chunks.add(pool.submit(i == 0
+                        ? () -> parseChunk(firstChunk, firstDataOffset, charset, usage, last, schema)
+                        : () -> parseChunk(map(channel, start, end), 0, charset, usage, last, schema)));
+            }
+
+            // in file order; later chunks keep parsing while earlier ones are appended
+            try {
+                for (Future<List<String[]>> chunk : chunks) {
+                    for (String[] values : chunk.get()) {
+                        store.addValues(values);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Разбор CSV прерван", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Ошибка разбора CSV: " + cause.getMessage(), cause);
+            } finally {
+                for (Future<List<String[]>> chunk : chunks) {
+                    chunk.cancel(true);
+                }
+            }
+            return store;
+        }
+    }
+
+    // File offsets where chunks start, plus the file size at the end. Every chunk start follows a '\n'
+    // outside quotes, so no record is split; finding them needs one sequential pass over the bytes.
+    private static long[] chunkBounds(FileChannel channel, long size, long chunkSize) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner();
+        long nextTarget = chunkSize;
+
+        for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW) {
+            int windowLength = (int) Math.min(SCAN_WINDOW, size - windowStart);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+            for (int i = 0; i < windowLength; i++) {
+                if (scanner.isRecordEnd(window.get(i)) && windowStart + i + 1 >= nextTarget) {
+                    long boundary = windowStart + i + 1;
+                    if (boundary < size) {
+                        bounds.add(boundary);
+                    }
+                    nextTarget = boundary + chunkSize;
+                }
+            }
+        }
+
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    // The mapping stays valid after the channel is closed
+    private static ByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    private static List<String[]> parseChunk(ByteBuffer data, int offset, Charset charset, byte[] usage,
+                                             boolean endOfFile, RowSchema schema) throws IOException {
+        RecordParser parser = new RecordParser(data, offset, charset, usage, endOfFile);
+        List<String[]> rows = new ArrayList<>();
+        String[] record;
+        while ((record = parser.next()) != null) {
+            rows.add(schema.values(record));
+        }
+        return rows;
+    }
+
+    // CSVReader + CSVParser with default settings, replayed on bytes read by index, so threads can share a buffer: lines end at "\n", "\r\n" or "\r",
+    // a quoted field may continue over several lines (joined with '\n'), '\\' escapes '"', ',' and itself,
+    // '""' inside a field is a quote, and a quote in the middle of a field is kept as text.
+    private static final class RecordParser {
+        private final ByteBuffer data;
+        private final Charset charset;
+        private final byte[] usage;
+        private final boolean endOfFile;
+        private int position;
+
+        private byte[] field = new byte[256];
+        private int fieldLength;
+        private final List<String> fields = new ArrayList<>();
+        private int fieldCount;
+
+        // usage null: decode every column (the header)
+        RecordParser(ByteBuffer data, int position, Charset charset, byte[] usage, boolean endOfFile) {
+            this.data = data;
+            this.position = position;
+            this.charset = charset;
+            this.usage = usage;
+            this.endOfFile = endOfFile;
+        }
+
+        int position() {
+            return position;
+        }
+
+        String[] next() throws IOException {
+            int end = data.limit();
+            if (position >= end) {
+                return null;
+            }
+
+            fields.clear();
+            fieldCount = 0;
+            fieldLength = 0;
+            boolean inQuotes = false;
+            boolean inField = false;
+
+            while (true) {
+                int lineStart = position;
+                int lineEnd = lineStart;
+                while (lineEnd < end && data.get(lineEnd) != LF && data.get(lineEnd) != CR) {
+                    lineEnd++;
+                }
+
+                // index in UTF-16 chars within the line, counted only as far as the "> 3" rule below needs
+                int charIndex = 0;
+                int i = lineStart;
+                while (i < lineEnd) {
+                    byte b = data.get(i);
+                    if (b == ESCAPE) {
+                        inField = true;
+                        if (i + 1 < lineEnd && (data.get(i + 1) == QUOTE || data.get(i + 1) == ESCAPE || data.get(i + 1) == SEPARATOR)) {
+                            append(data.get(i + 1));
+                            i += 2;
+                            charIndex += 2;
+                        } else {
+                            // an escape before anything else is dropped
+                            i++;
+                            charIndex++;
+                        }
+                    } else if (b == QUOTE) {
+                        if ((inQuotes || inField) && i + 1 < lineEnd && data.get(i + 1) == QUOTE) {
+                            append(QUOTE);
+                            i += 2;
+                            charIndex += 2;
+                        } else {
+                            inQuotes = !inQuotes;
+                            // a quote in the middle of unquoted text is kept, unless only whitespace precedes it
+                            if (charIndex >= 3 && data.get(i - 1) != SEPARATOR && i + 1 < lineEnd && data.get(i + 1) != SEPARATOR) {
+                                if (fieldLength > 0 && isWhitespace()) {
+                                    fieldLength = 0;
+                                } else {
+                                    append(QUOTE);
+                                }
+                            }
+                            i++;
+                            charIndex++;
+                        }
+                        inField = !inField;
+                    } else if (b == SEPARATOR && !inQuotes) {
+                        endField();
+                        inField = false;
+                        i++;
+                        charIndex++;
+                    } else {
+                        append(b);
+                        inField = true;
+                        i++;
+                        if (charIndex < 4) {
+                            charIndex += charWidth(b);
+                        }
+                    }
+                }
+
+                position = lineEnd;
+                boolean terminated = position < end;
+                if (terminated) {
+                    position += data.get(position) == CR && position + 1 < end && data.get(position + 1) == LF ? 2 : 1;
+                }
+
+                if (!inQuotes) {
+                    endField();
+                    return record();
+                }
+                if (position >= end) {
+                    if (endOfFile) {
+                        throw new IOException("Ошибка разбора CSV: незакрытая кавычка в последней записи");
+                    }
+                    throw new IllegalStateException("Запись разрезана на границе фрагмента");
+                }
+                // the quoted field goes on in the next line
+                append(LF);
+            }
+        }
+
+        // UTF-16 chars contributed by a byte: 0 for UTF-8 continuation bytes, 2 for a 4-byte lead
+        private int charWidth(byte b) {
+            if (charset != StandardCharsets.UTF_8 || b >= 0) {
+                return 1;
+            }
+            if ((b & 0xC0) == 0x80) {
+                return 0;
+            }
+            return (b & 0xF8) == 0xF0 ? 2 : 1;
+        }
+
+        private void append(byte b) {
+            if (fieldLength == field.length) {
+                field = Arrays.copyOf(field, field.length * 2);
+            }
+            field[fieldLength++] = b;
+        }
+
+        private boolean isWhitespace() {
+            String text = new String(field, 0, fieldLength, charset);
+            for (int i = 0; i < text.length(); i++) {
+                if (!Character.isWhitespace(text.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void endField() {
+            int column = fieldCount++;
+            if (usage == null) {
+                fields.add(new String(field, 0, fieldLength, charset));
+            } else if (column < usage.length) {
+                // columns past the header are never read by the projection
+                switch (usage[column]) {
+                    case RowSchema.COLUMN_VALUE:
+                        fields.add(new String(field, 0, fieldLength, charset));
+                        break;
+                    case RowSchema.COLUMN_PRESENCE:
+                        fields.add(fieldLength == 0 ? "" : PRESENT);
+                        break;
+                    default:
+                        fields.add(null);
+                        break;
+                }
+            }
+            fieldLength = 0;
+        }
+
+        private String[] record() {
+            return fields.toArray(new String[0]);
+        }
+    }
+}
\ No newline at end of file
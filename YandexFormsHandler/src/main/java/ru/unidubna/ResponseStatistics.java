@@ -0,0 +1,353 @@
+package ru.unidubna;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Summary of all responses in an export: per question how often each answer and each
+// "<question> / <option>" variant was given, and sum, mean, min and max of its "Баллы".
+// Collected in one pass over the CSV records. Batches of records go to worker threads, each with its
+// own Accumulator, and the accumulators are merged at the end, so the result doesn't depend on
+// how the records were split.
+public final class ResponseStatistics {
+    private static final int BATCH_SIZE = 512;
+
+    private final Layout[] layouts;
+    private final Accumulator totals;
+
+    private ResponseStatistics(Layout[] layouts, Accumulator totals) {
+        this.layouts = layouts;
+        this.totals = totals;
+    }
+
+    // parallelism 0: one worker per available core; filter (may be null) narrows the responses counted
+    public static ResponseStatistics collect(String csvPath, int parallelism, RowFilter filter) throws IOException {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(csvPath, null, filter)) {
+            Layout[] layouts = layout(rows.getSchema());
+            return new ResponseStatistics(layouts, threads == 1 ? collect(rows, layouts) : collect(rows, layouts, threads));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (CSVDataFetcher.RowParseException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+    }
+
+    // Empty statistics that count the records given to add(), from one thread: fed with the records
+    // a generation run reads anyway, they need no pass over the CSV of their own
+    static ResponseStatistics counting(RowSchema schema) {
+        Layout[] layouts = layout(schema);
+        return new ResponseStatistics(layouts, new Accumulator(layouts));
+    }
+
+    void add(String[] record) {
+        totals.add(record);
+    }
+
+    private static Accumulator collect(CSVDataFetcher.RowIterator rows, Layout[] layouts) throws IOException {
+        Accumulator accumulator = new Accumulator(layouts);
+        while (rows.hasNext()) {
+            // a cancel interrupts the reading thread
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Подсчёт статистики прерван");
+            }
+            accumulator.add(rows.nextRecord());
+        }
+        return accumulator;
+    }
+
+    // The reading thread hands out batches; a worker takes a free accumulator for each batch, so there
+    // are never more accumulators than workers, and about 2 * threads batches are held in memory at most.
+    // The first failure of a worker stops the reading and is rethrown on the reading thread.
+    private static Accumulator collect(CSVDataFetcher.RowIterator rows, Layout[] layouts, int threads) throws IOException {
+        BlockingQueue<Accumulator> free = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            free.add(new Accumulator(layouts));
+        }
+        Semaphore batches = new Semaphore(threads * 2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "stats-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            while (failure.get() == null && rows.hasNext()) {
+                List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && rows.hasNext()) {
+                    batch.add(rows.nextRecord());
+                }
+                batches.acquire();
+                executor.execute(() -> {
+                    Accumulator accumulator = free.remove();
+                    try {
+                        for (String[] record : batch) {
+                            accumulator.add(record);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        free.add(accumulator);
+                        batches.release();
+                    }
+                });
+            }
+            batches.acquire(threads * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Подсчёт статистики прерван", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Throwable error = failure.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+
+        Accumulator totals = free.remove();
+        for (Accumulator accumulator : free) {
+            totals.merge(accumulator);
+        }
+        return totals;
+    }
+
+    // The questions as the certificates see them, except that a repeated option header, which resolves to
+    // the column of its first occurrence, is counted once
+    static Layout[] layout(RowSchema schema) {
+        List<Layout> layouts = new ArrayList<>();
+        for (RowSchema.Question question : schema.questions()) {
+            List<Integer> variantColumns = new ArrayList<>();
+            List<String> variantLabels = new ArrayList<>();
+            for (int i = 0; i < question.variantColumns.length; i++) {
+                if (!variantColumns.contains(question.variantColumns[i])) {
+                    variantColumns.add(question.variantColumns[i]);
+                    variantLabels.add(question.variantLabels[i]);
+                }
+            }
+            layouts.add(new Layout(question.key, question.mainColumn,
+                    variantColumns.stream().mapToInt(Integer::intValue).toArray(), variantLabels.toArray(new String[0]),
+                    question.pointsColumns));
+        }
+        return layouts.toArray(new Layout[0]);
+    }
+
+    // A score as exported, with '.' or ',' before the fraction; NaN if the text isn't a number
+    static double parsePoints(String points) {
+        try {
+            return Double.parseDouble(points.trim().replace(',', '.'));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public long getResponses() {
+        return totals.responses;
+    }
+
+    public List<QuestionSummary> getQuestions() {
+        List<QuestionSummary> questions = new ArrayList<>(layouts.length);
+        for (int i = 0; i < layouts.length; i++) {
+            questions.add(new QuestionSummary(layouts[i], totals.questions[i]));
+        }
+        return questions;
+    }
+
+    // Where a question's columns are in the record
+    static final class Layout {
+        final String question;
+        final int mainColumn;
+        final int[] variantColumns;
+        final String[] variantLabels;
+        final int[] pointsColumns;
+
+        Layout(String question, int mainColumn, int[] variantColumns, String[] variantLabels, int[] pointsColumns) {
+            this.question = question;
+            this.mainColumn = mainColumn;
+            this.variantColumns = variantColumns;
+            this.variantLabels = variantLabels;
+            this.pointsColumns = pointsColumns;
+        }
+    }
+
+    // Running totals for part of the records; used by one thread at a time
+    static final class Accumulator {
+        private final Layout[] layouts;
+        private final QuestionAccumulator[] questions;
+        private long responses;
+
+        Accumulator(Layout[] layouts) {
+            this.layouts = layouts;
+            this.questions = new QuestionAccumulator[layouts.length];
+            for (int i = 0; i < layouts.length; i++) {
+                questions[i] = new QuestionAccumulator(layouts[i].variantColumns.length);
+            }
+        }
+
+        void add(String[] record) {
+            responses++;
+            for (int i = 0; i < layouts.length; i++) {
+                questions[i].add(layouts[i], record);
+            }
+        }
+
+        void merge(Accumulator other) {
+            responses += other.responses;
+            for (int i = 0; i < questions.length; i++) {
+                questions[i].merge(other.questions[i]);
+            }
+        }
+    }
+
+    private static final class QuestionAccumulator {
+        // text of the question's own column -> how many gave it
+        final Map<String, long[]> answers = new HashMap<>();
+        final long[] variants;
+        long answered;
+        long scored;
+        // points that aren't numbers are counted, not summed
+        long unparsedPoints;
+        double pointsSum;
+        double pointsMin = Double.POSITIVE_INFINITY;
+        double pointsMax = Double.NEGATIVE_INFINITY;
+
+        QuestionAccumulator(int variantCount) {
+            this.variants = new long[variantCount];
+        }
+
+        void add(Layout layout, String[] record) {
+            boolean any = false;
+            String answer = cell(record, layout.mainColumn);
+            if (!answer.isEmpty()) {
+                answers.computeIfAbsent(answer, k -> new long[1])[0]++;
+                any = true;
+            }
+            for (int i = 0; i < variants.length; i++) {
+                if (!cell(record, layout.variantColumns[i]).isEmpty()) {
+                    variants[i]++;
+                    any = true;
+                }
+            }
+
+            // the last filled "Баллы" column counts, as on the certificate
+            String points = "";
+            for (int column : layout.pointsColumns) {
+                String value = cell(record, column);
+                if (!value.isEmpty()) {
+                    points = value;
+                }
+            }
+            if (!points.isEmpty()) {
+                any = true;
+                addPoints(points);
+            }
+            if (any) {
+                answered++;
+            }
+        }
+
+        private void addPoints(String points) {
+            double value = parsePoints(points);
+            if (Double.isNaN(value)) {
+                unparsedPoints++;
+                return;
+            }
+            scored++;
+            pointsSum += value;
+            pointsMin = Math.min(pointsMin, value);
+            pointsMax = Math.max(pointsMax, value);
+        }
+
+        void merge(QuestionAccumulator other) {
+            for (Map.Entry<String, long[]> entry : other.answers.entrySet()) {
+                answers.computeIfAbsent(entry.getKey(), k -> new long[1])[0] += entry.getValue()[0];
+            }
+            for (int i = 0; i < variants.length; i++) {
+                variants[i] += other.variants[i];
+            }
+            answered += other.answered;
+            scored += other.scored;
+            unparsedPoints += other.unparsedPoints;
+            pointsSum += other.pointsSum;
+            pointsMin = Math.min(pointsMin, other.pointsMin);
+            pointsMax = Math.max(pointsMax, other.pointsMax);
+        }
+
+        private static String cell(String[] record, int column) {
+            return column >= 0 && column < record.length ? record[column] : "";
+        }
+    }
+
+    public static final class QuestionSummary {
+        private final Layout layout;
+        private final QuestionAccumulator totals;
+
+        private QuestionSummary(Layout layout, QuestionAccumulator totals) {
+            this.layout = layout;
+            this.totals = totals;
+        }
+
+        public String getQuestion() {
+            return layout.question;
+        }
+
+        // Responses with an answer, a variant or points for this question
+        public long getAnswered() {
+            return totals.answered;
+        }
+
+        // Answers from the question's own column, most frequent first
+        public List<Map.Entry<String, Long>> getAnswerCounts() {
+            List<Map.Entry<String, Long>> counts = new ArrayList<>(totals.answers.size());
+            for (Map.Entry<String, long[]> entry : totals.answers.entrySet()) {
+                counts.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()[0]));
+            }
+            counts.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            return counts;
+        }
+
+        // Variant label -> responses that ticked it, in column order
+        public Map<String, Long> getVariantCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (int i = 0; i < layout.variantLabels.length; i++) {
+                counts.merge(layout.variantLabels[i], totals.variants[i], Long::sum);
+            }
+            return counts;
+        }
+
+        public boolean hasPoints() {
+            return layout.pointsColumns.length > 0;
+        }
+
+        // Responses with numeric points
+        public long getScored() {
+            return totals.scored;
+        }
+
+        public long getUnparsedPoints() {
+            return totals.unparsedPoints;
+        }
+
+        public double getPointsSum() {
+            return totals.pointsSum;
+        }
+
+        public double getPointsMean() {
+            return totals.scored == 0 ? Double.NaN : totals.pointsSum / totals.scored;
+        }
+
+        public double getPointsMin() {
+            return totals.scored == 0 ? Double.NaN : totals.pointsMin;
+        }
+
+        public double getPointsMax() {
+            return totals.scored == 0 ? Double.NaN : totals.pointsMax;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,413 @@
+package ru.unidubna;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+// Selects the rows to make certificates for. Conditions on columns, combined with &&, || and !, with parentheses:
+//   Факультет = ИСАУ                  the cell equals the text (case and surrounding spaces ignored)
+//   Факультет != ИСАУ
+//   Группа ~ 41                       the cell contains the text
+//   Баллы >= 10                       numeric comparison: >, >=, <, <=; "Баллы" alone is the total of
+//                                     all "<question> / Баллы" columns unless the export has such a column
+//   ФИО in (Иванов Иван, Петров Пётр) one of the listed values, ignoring case, extra spaces and ё/е
+//   ФИО in @список.txt                the values from a file, one per line (UTF-8)
+// A column name or value with spaces at the ends, operators or parentheses goes in double quotes ("" for a quote).
+// The expression is compiled against the header once and then tested on raw records, before a row is projected.
+public final class RowFilter {
+    private static final String POINTS_TOTAL = "Баллы";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final String expression;
+    private final Node root;
+
+    private RowFilter(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    // Syntax is checked here; column names only in compile()
+    public static RowFilter parse(String expression) {
+        Parser parser = new Parser(expression);
+        Node root = parser.expression();
+        parser.skipSpaces();
+        if (!parser.atEnd()) {
+            throw parser.error("лишний текст");
+        }
+        return new RowFilter(expression, root);
+    }
+
+    Predicate<String[]> compile(String[] headers) throws IOException {
+        return root.compile(new Columns(headers));
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private interface Node {
+        Predicate<String[]> compile(Columns columns) throws IOException;
+    }
+
+    // Header lookup for compile(); a repeated header resolves to its first column, as in RowSchema
+    private static final class Columns {
+        private final String[] headers;
+        private final Map<String, Integer> firstIndex = new HashMap<>();
+
+        Columns(String[] headers) {
+            this.headers = headers;
+            for (int i = 0; i < headers.length; i++) {
+                firstIndex.putIfAbsent(headers[i], i);
+            }
+        }
+
+        // the cell's text, or for the points total its sum as text
+        ValueSource source(String column) throws IOException {
+            Integer index = firstIndex.get(column);
+            if (index != null) {
+                int i = index;
+                return record -> i < record.length ? record[i] : "";
+            }
+            if (column.equals(POINTS_TOTAL)) {
+                List<int[]> questions = new ArrayList<>();
+                for (ResponseStatistics.Layout layout : ResponseStatistics.layout(RowSchema.compile(headers))) {
+                    if (layout.pointsColumns.length > 0) {
+                        questions.add(layout.pointsColumns);
+                    }
+                }
+                if (!questions.isEmpty()) {
+                    int[][] pointsColumns = questions.toArray(new int[0][]);
+                    return new ValueSource() {
+                        @Override
+                        public String text(String[] record) {
+                            double total = number(record);
+                            return Double.isNaN(total) ? "" : Double.toString(total);
+                        }
+
+                        @Override
+                        public double number(String[] record) {
+                            return totalPoints(record, pointsColumns);
+                        }
+                    };
+                }
+            }
+            throw new IOException("В CSV нет колонки для фильтра: " + column);
+        }
+    }
+
+    // the last filled "Баллы" column of each question counts, as on the certificate; NaN if none is a number
+    private static double totalPoints(String[] record, int[][] pointsColumns) {
+        double total = 0;
+        boolean any = false;
+        for (int[] columns : pointsColumns) {
+            String points = "";
+            for (int column : columns) {
+                if (column < record.length && !record[column].isEmpty()) {
+                    points = record[column];
+                }
+            }
+            double value = ResponseStatistics.parsePoints(points);
+            if (!Double.isNaN(value)) {
+                total += value;
+                any = true;
+            }
+        }
+        return any ? total : Double.NaN;
+    }
+
+    private interface ValueSource {
+        String text(String[] record);
+
+        default double number(String[] record) {
+            return ResponseStatistics.parsePoints(text(record));
+        }
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        // expression := and ( "||" and )*
+        Node expression() {
+            Node left = and();
+            while (consume("||")) {
+                Node l = left;
+                Node r = and();
+                left = columns -> l.compile(columns).or(r.compile(columns));
+            }
+            return left;
+        }
+
+        // and := unary ( "&&" unary )*
+        private Node and() {
+            Node left = unary();
+            while (consume("&&")) {
+                Node l = left;
+                Node r = unary();
+                left = columns -> l.compile(columns).and(r.compile(columns));
+            }
+            return left;
+        }
+
+        private Node unary() {
+            skipSpaces();
+            if (peek('!') && !text.startsWith("!=", position)) {
+                position++;
+                Node inner = unary();
+                return columns -> inner.compile(columns).negate();
+            }
+            if (consume("(")) {
+                Node inner = expression();
+                if (!consume(")")) {
+                    throw error("нет закрывающей скобки");
+                }
+                return inner;
+            }
+            return condition();
+        }
+
+        private Node condition() {
+            String column = column();
+            skipSpaces();
+            if (consumeWord("in")) {
+                Set<String> values = list();
+                return columns -> {
+                    ValueSource source = columns.source(column);
+                    return record -> values.contains(normalize(source.text(record)));
+                };
+            }
+
+            String operator = operator();
+            int valueStart = position;
+            String value = value();
+            switch (operator) {
+                case "=":
+                case "!=": {
+                    String expected = value.trim();
+                    double expectedNumber = ResponseStatistics.parsePoints(expected);
+                    boolean negate = operator.equals("!=");
+                    return columns -> {
+                        ValueSource source = columns.source(column);
+                        return record -> negate != equal(source, record, expected, expectedNumber);
+                    };
+                }
+                case "~": {
+                    String needle = value.trim();
+                    return columns -> {
+                        ValueSource source = columns.source(column);
+                        return record -> containsIgnoreCase(source.text(record), needle);
+                    };
+                }
+                default: {
+                    double bound = ResponseStatistics.parsePoints(value);
+                    if (Double.isNaN(bound)) {
+                        position = valueStart;
+                        throw error("для " + operator + " нужно число");
+                    }
+                    return columns -> {
+                        ValueSource source = columns.source(column);
+                        return record -> compare(source.number(record), operator, bound);
+                    };
+                }
+            }
+        }
+
+        // quoted, or everything up to the operator
+        private String column() {
+            skipSpaces();
+            if (peek('"')) {
+                return quoted();
+            }
+            int start = position;
+            while (!atEnd() && "=!~<>".indexOf(text.charAt(position)) < 0 && !atWord("in")) {
+                position++;
+            }
+            String column = text.substring(start, position).trim();
+            if (column.isEmpty()) {
+                throw error("ожидается имя колонки");
+            }
+            return column;
+        }
+
+        private String operator() {
+            for (String operator : new String[]{"!=", ">=", "<=", "=", "~", ">", "<"}) {
+                if (consume(operator)) {
+                    return operator;
+                }
+            }
+            throw error("ожидается =, !=, ~, >, >=, <, <= или in");
+        }
+
+        // quoted, or everything up to &&, || or a closing parenthesis
+        private String value() {
+            skipSpaces();
+            if (peek('"')) {
+                return quoted();
+            }
+            int start = position;
+            while (!atEnd() && !text.startsWith("&&", position) && !text.startsWith("||", position) && !peek(')')) {
+                position++;
+            }
+            String value = text.substring(start, position).trim();
+            if (value.isEmpty()) {
+                throw error("ожидается значение");
+            }
+            return value;
+        }
+
+        // "(a, b, ...)" or "@file"
+        private Set<String> list() {
+            skipSpaces();
+            Set<String> values = new HashSet<>();
+            if (consume("@")) {
+                int start = position;
+                String file = peek('"') ? quoted() : value();
+                try {
+                    for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+                        if (!line.trim().isEmpty()) {
+                            values.add(normalize(line));
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    position = start;
+                    throw error("не удалось прочитать список " + file + ": " + e.getMessage());
+                }
+                return values;
+            }
+
+            if (!consume("(")) {
+                throw error("после in ожидается (значения) или @файл");
+            }
+            do {
+                skipSpaces();
+                if (peek('"')) {
+                    values.add(normalize(quoted()));
+                } else {
+                    int start = position;
+                    while (!atEnd() && !peek(',') && !peek(')')) {
+                        position++;
+                    }
+                    String item = text.substring(start, position).trim();
+                    if (!item.isEmpty()) {
+                        values.add(normalize(item));
+                    }
+                }
+                skipSpaces();
+            } while (consume(","));
+            if (!consume(")")) {
+                throw error("нет закрывающей скобки списка");
+            }
+            return values;
+        }
+
+        private String quoted() {
+            int start = position;
+            position++;
+            StringBuilder value = new StringBuilder();
+            while (!atEnd()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    if (peek('"')) {
+                        value.append('"');
+                        position++;
+                    } else {
+                        return value.toString();
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            position = start;
+            throw error("не закрыта кавычка");
+        }
+
+        private boolean consume(String token) {
+            skipSpaces();
+            if (text.startsWith(token, position)) {
+                position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean consumeWord(String word) {
+            if (atWord(word)) {
+                position += word.length();
+                return true;
+            }
+            return false;
+        }
+
+        // the word at the position, standing alone
+        private boolean atWord(String word) {
+            int end = position + word.length();
+            return text.regionMatches(true, position, word, 0, word.length())
+                    && (position == 0 || Character.isWhitespace(text.charAt(position - 1)))
+                    && (end == text.length() || Character.isWhitespace(text.charAt(end)) || text.charAt(end) == '(' || text.charAt(end) == '@');
+        }
+
+        private boolean peek(char c) {
+            return position < text.length() && text.charAt(position) == c;
+        }
+
+        void skipSpaces() {
+            while (!atEnd() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        boolean atEnd() {
+            return position >= text.length();
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Ошибка в фильтре (символ " + (position + 1) + "): " + message + ": " + text);
+        }
+    }
+
+    private static boolean equal(ValueSource source, String[] record, String expected, double expectedNumber) {
+        String actual = source.text(record).trim();
+        if (actual.equalsIgnoreCase(expected)) {
+            return true;
+        }
+        // "10" and "10,0" are the same score
+        return !Double.isNaN(expectedNumber) && ResponseStatistics.parsePoints(actual) == expectedNumber;
+    }
+
+    private static boolean containsIgnoreCase(String text, String needle) {
+        int last = text.length() - needle.length();
+        for (int i = 0; i <= last; i++) {
+            if (text.regionMatches(true, i, needle, 0, needle.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // an empty or non-numeric cell matches no comparison
+    private static boolean compare(double value, String operator, double bound) {
+        switch (operator) {
+            case ">":
+                return value > bound;
+            case ">=":
+                return value >= bound;
+            case "<":
+                return value < bound;
+            default:
+                return value <= bound;
+        }
+    }
+
+    private static String normalize(String value) {
+        return WHITESPACE.matcher(value.trim()).replaceAll(" ").toLowerCase(Locale.ROOT).replace('ё', 'е');
+    }
+}
\ No newline at end of file
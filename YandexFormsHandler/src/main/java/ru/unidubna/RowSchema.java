@@ -0,0 +1,257 @@
+package ru.unidubna;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Header layout of a Yandex Forms export, resolved once per file.
+// Every column index a row needs is computed here, so projecting a row is a single linear pass.
+public final class RowSchema {
+    // How project() uses a CSV column, see columnUsage()
+    static final byte COLUMN_UNUSED = 0;
+    static final byte COLUMN_PRESENCE = 1;
+    static final byte COLUMN_VALUE = 2;
+
+    private static final String QUESTION_SEPARATOR = " / ";
+    private static final Pattern QUESTION_SEPARATOR_PATTERN = Pattern.compile(Pattern.quote(QUESTION_SEPARATOR));
+    private static final String POINTS_LABEL = "Баллы";
+
+    private final String[] headers;
+    private final Question[] questions;
+    private final String[] passthroughKeys;
+    private final int[] passthroughColumns;
+    // Distinct map keys in the order project() inserts them: questions, then passthrough columns
+    private final String[] keys;
+    private final Map<String, Integer> keySlots;
+    private final int[] passthroughSlots;
+
+    private RowSchema(String[] headers, Question[] questions, String[] passthroughKeys, int[] passthroughColumns) {
+        this.headers = headers;
+        this.questions = questions;
+        this.passthroughKeys = passthroughKeys;
+        this.passthroughColumns = passthroughColumns;
+
+        // a repeated passthrough header keeps its first position, as in a LinkedHashMap
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        for (Question question : questions) {
+            slots.putIfAbsent(question.key, slots.size());
+        }
+        this.passthroughSlots = new int[passthroughKeys.length];
+        for (int i = 0; i < passthroughKeys.length; i++) {
+            Integer slot = slots.putIfAbsent(passthroughKeys[i], slots.size());
+            passthroughSlots[i] = slot == null ? slots.size() - 1 : slot;
+        }
+        this.keys = slots.keySet().toArray(new String[0]);
+        this.keySlots = slots;
+    }
+
+    public static RowSchema compile(String[] headers) {
+        headers = headers.clone();
+
+        // Duplicate headers always resolve to their first column, as List.indexOf() did
+        Map<String, Integer> firstIndex = new HashMap<>();
+        for (int i = 0; i < headers.length; i++) {
+            firstIndex.putIfAbsent(headers[i], i);
+        }
+
+        List<Question> questions = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : groupQuestions(headers).entrySet()) {
+            String mainQuestion = entry.getKey();
+            List<Integer> variantColumns = new ArrayList<>();
+            List<String> variantLabels = new ArrayList<>();
+            List<Integer> pointsColumns = new ArrayList<>();
+
+            for (String column : entry.getValue()) {
+                String[] parts = QUESTION_SEPARATOR_PATTERN.split(column);
+                if (parts.length > 1) {
+                    if (parts[1].equals(POINTS_LABEL)) {
+                        pointsColumns.add(firstIndex.get(column));
+                    } else {
+                        variantColumns.add(firstIndex.get(column));
+                        variantLabels.add(parts[1]);
+                    }
+                }
+            }
+
+            questions.add(new Question(mainQuestion, firstIndex.getOrDefault(mainQuestion, -1),
+                    toIntArray(variantColumns), variantLabels.toArray(new String[0]), toIntArray(pointsColumns)));
+        }
+
+        // For fields without " / " in the header that aren't questions themselves
+        Set<String> questionKeys = new HashSet<>();
+        for (Question question : questions) {
+            questionKeys.add(question.key);
+        }
+        List<String> passthroughKeys = new ArrayList<>();
+        List<Integer> passthroughColumns = new ArrayList<>();
+        for (int i = 0; i < headers.length; i++) {
+            if (!headers[i].contains(QUESTION_SEPARATOR) && !questionKeys.contains(headers[i])) {
+                passthroughKeys.add(headers[i]);
+                passthroughColumns.add(i);
+            }
+        }
+
+        return new RowSchema(headers, questions.toArray(new Question[0]),
+                passthroughKeys.toArray(new String[0]), toIntArray(passthroughColumns));
+    }
+
+    // Group by main question (to handle "<question> / <option or score>")
+    static Map<String, List<String>> groupQuestions(String[] headers) {
+        Map<String, List<String>> questionToColumns = new LinkedHashMap<>();
+
+        for (String header : headers) {
+            if (header.contains(QUESTION_SEPARATOR)) {
+                String mainQuestion = QUESTION_SEPARATOR_PATTERN.split(header)[0];
+                questionToColumns.computeIfAbsent(mainQuestion, k -> new ArrayList<>()).add(header);
+            }
+        }
+
+        return questionToColumns;
+    }
+
+    public Map<String, String> project(String[] row) {
+        Map<String, String> rowMap = new LinkedHashMap<>();
+
+        for (Question question : questions) {
+            rowMap.put(question.key, question.answer(row));
+        }
+
+        for (int i = 0; i < passthroughColumns.length; i++) {
+            int column = passthroughColumns[i];
+            if (column < row.length) {
+                rowMap.put(passthroughKeys[i], row[column]);
+            }
+        }
+
+        return rowMap;
+    }
+
+    // Same content as project(), as one value per key slot (see getKeys()); null where the row has no such key
+    public String[] values(String[] row) {
+        String[] values = new String[keys.length];
+
+        for (int i = 0; i < questions.length; i++) {
+            values[i] = questions[i].answer(row);
+        }
+
+        for (int i = 0; i < passthroughColumns.length; i++) {
+            int column = passthroughColumns[i];
+            if (column < row.length) {
+                values[passthroughSlots[i]] = row[column];
+            }
+        }
+
+        return values;
+    }
+
+    // Per header column: VALUE if its text ends up in a row, PRESENCE if only "is it empty" matters
+    // (option columns, whose label comes from the header), UNUSED otherwise (e.g. a repeated header)
+    byte[] columnUsage() {
+        byte[] usage = new byte[headers.length];
+        for (Question question : questions) {
+            for (int column : question.variantColumns) {
+                usage[column] = COLUMN_PRESENCE;
+            }
+        }
+        for (Question question : questions) {
+            if (question.mainColumn != -1) {
+                usage[question.mainColumn] = COLUMN_VALUE;
+            }
+            for (int column : question.pointsColumns) {
+                usage[column] = COLUMN_VALUE;
+            }
+        }
+        for (int column : passthroughColumns) {
+            usage[column] = COLUMN_VALUE;
+        }
+        return usage;
+    }
+
+    public String[] getKeys() {
+        return keys.clone();
+    }
+
+    int keyCount() {
+        return keys.length;
+    }
+
+    String key(int slot) {
+        return keys[slot];
+    }
+
+    // Slot of the key, or -1
+    int slotOf(Object key) {
+        Integer slot = keySlots.get(key);
+        return slot == null ? -1 : slot;
+    }
+
+    public String[] getHeaders() {
+        return headers.clone();
+    }
+
+    // The columns grouped under every question, in key order
+    List<Question> questions() {
+        return Collections.unmodifiableList(Arrays.asList(questions));
+    }
+
+    private static int[] toIntArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    static final class Question {
+        final String key;
+        final int mainColumn;
+        final int[] variantColumns;
+        final String[] variantLabels;
+        final int[] pointsColumns;
+
+        Question(String key, int mainColumn, int[] variantColumns, String[] variantLabels, int[] pointsColumns) {
+            this.key = key;
+            this.mainColumn = mainColumn;
+            this.variantColumns = variantColumns;
+            this.variantLabels = variantLabels;
+            this.pointsColumns = pointsColumns;
+        }
+
+        String answer(String[] row) {
+            StringBuilder answerBuilder = new StringBuilder();
+
+            if (mainColumn != -1 && mainColumn < row.length && !row[mainColumn].isEmpty()) {
+                answerBuilder.append(row[mainColumn]);
+            }
+
+            for (int i = 0; i < variantColumns.length; i++) {
+                int column = variantColumns[i];
+                if (column < row.length && !row[column].isEmpty()) {
+                    // Append variant to answer
+                    if (answerBuilder.length() > 0) {
+                        answerBuilder.append(", ");
+                    }
+                    answerBuilder.append(variantLabels[i]);
+                }
+            }
+
+            // The last filled "Баллы" column wins
+            String pointsValue = "";
+            for (int column : pointsColumns) {
+                if (column < row.length && !row[column].isEmpty()) {
+                    pointsValue = row[column];
+                }
+            }
+
+            if (!pointsValue.isEmpty()) {
+                if (answerBuilder.length() > 0) {
+                    answerBuilder.append("; баллы - ").append(pointsValue);
+                } else {
+                    // Only points, no variants
+                    answerBuilder.append("баллы - ").append(pointsValue);
+                }
+            }
+
+            return answerBuilder.toString();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,178 @@
+package ru.unidubna;
+
+import java.util.*;
+
+// All rows of an export in column form: one shared RowSchema, and per key slot a column of
+// dictionary codes into that column's distinct values. Repeated answers (empty cells, variant
+// labels, "баллы - N") are stored once; a row costs one int per key instead of a LinkedHashMap.
+// get(i) returns a read-only Map view with the same keys, order and values as RowSchema.project().
+public final class RowStore extends AbstractList<Map<String, String>> {
+    private final RowSchema schema;
+    private final Column[] columns;
+    private int size;
+
+    public RowStore(RowSchema schema) {
+        this.schema = schema;
+        this.columns = new Column[schema.keyCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column();
+        }
+    }
+
+    // Projects a raw CSV record and appends it
+    public void addRecord(String[] record) {
+        addValues(schema.values(record));
+    }
+
+    // Appends a row already projected with schema.values()
+    void addValues(String[] values) {
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(size, values[i]);
+        }
+        size++;
+    }
+
+    public RowSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public Map<String, String> get(int index) {
+        Objects.checkIndex(index, size);
+        return new RowView(index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private final class RowView extends AbstractMap<String, String> {
+        private final int row;
+
+        RowView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public String get(Object key) {
+            int slot = schema.slotOf(key);
+            return slot < 0 ? null : columns[slot].get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            int slot = schema.slotOf(key);
+            return slot >= 0 && columns[slot].get(row) != null;
+        }
+
+        @Override
+        public int size() {
+            int count = 0;
+            for (Column column : columns) {
+                if (column.get(row) != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int slot = advance(0);
+
+                        private int advance(int from) {
+                            while (from < columns.length && columns[from].get(row) == null) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return slot < columns.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (slot >= columns.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<>(schema.key(slot), columns[slot].get(row));
+                            slot = advance(slot + 1);
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return RowView.this.size();
+                }
+            };
+        }
+    }
+
+    // Dictionary-encoded until the column turns out to be mostly unique (free-text answers),
+    // then it falls back to plain references, where a dictionary would only add overhead
+    private static final class Column {
+        private static final int ABSENT = -1;
+        private static final int MIN_PLAIN_DISTINCT = 256;
+
+        private int[] codes = new int[16];
+        private List<String> dictionary = new ArrayList<>();
+        private Map<String, Integer> lookup = new HashMap<>();
+        private String[] plain;
+
+        void add(int row, String value) {
+            if (plain != null) {
+                if (row == plain.length) {
+                    plain = Arrays.copyOf(plain, row + (row >> 1) + 1);
+                }
+                plain[row] = value;
+                return;
+            }
+
+            if (row == codes.length) {
+                codes = Arrays.copyOf(codes, row + (row >> 1) + 1);
+            }
+            if (value == null) {
+                codes[row] = ABSENT;
+                return;
+            }
+            Integer code = lookup.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                lookup.put(value, code);
+            }
+            codes[row] = code;
+
+            if (dictionary.size() > MIN_PLAIN_DISTINCT && dictionary.size() > (row + 1) / 2) {
+                toPlain(row + 1);
+            }
+        }
+
+        private void toPlain(int rows) {
+            plain = new String[codes.length];
+            for (int i = 0; i < rows; i++) {
+                plain[i] = codes[i] == ABSENT ? null : dictionary.get(codes[i]);
+            }
+            codes = null;
+            dictionary = null;
+            lookup = null;
+        }
+
+        String get(int row) {
+            if (plain != null) {
+                return plain[row];
+            }
+            int code = codes[row];
+            return code == ABSENT ? null : dictionary.get(code);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+package ru.unidubna;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+// What an incremental run has already produced: output file name -> hash of (template, row) and file size.
+// Lines are appended as documents are published, so an interrupted run resumes where it stopped and never
+// skips a document that didn't make it to disk; close() rewrites the file with one line per document.
+final class RunManifest implements Closeable {
+    static final String FILE_NAME = ".справки.manifest";
+    private static final String SEPARATOR = "\t";
+
+    private final Path path;
+    private final Map<String, Entry> entries;
+    // written documents not in place yet, see DocumentSink.DirectorySink
+    private final Map<String, Entry> unpublished = new HashMap<>();
+    // output names already claimed in this run; a repeated name is never skipped
+    private final Set<String> claimed = new HashSet<>();
+    private final MessageDigest digest;
+    private final byte[] templateHash;
+    private final Writer appender;
+
+    private RunManifest(Path path, Map<String, Entry> entries, byte[] templateHash) throws IOException {
+        this.path = path;
+        this.entries = entries;
+        this.templateHash = templateHash;
+        this.digest = Sha256.digest();
+        this.appender = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // templateFingerprint identifies everything besides the row that shapes the output (template bytes, engine)
+    static RunManifest open(String outputDirectory, byte[]... templateFingerprint) throws IOException {
+        Path path = Paths.get(outputDirectory, FILE_NAME);
+        MessageDigest templateDigest = Sha256.digest();
+        for (byte[] part : templateFingerprint) {
+            templateDigest.update(part);
+            templateDigest.update((byte) 0);
+        }
+        return new RunManifest(path, read(path), templateDigest.digest());
+    }
+
+    private static Map<String, Entry> read(Path path) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        if (!Files.exists(path)) {
+            return entries;
+        }
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            // hash, size, file name; a torn last line from an interrupted run is just ignored
+            String[] parts = line.split(SEPARATOR, 3);
+            if (parts.length < 3) continue;
+            try {
+                entries.put(parts[2], new Entry(parts[0], Long.parseLong(parts[1])));
+            } catch (NumberFormatException e) {
+                // skip the broken line
+            }
+        }
+        return entries;
+    }
+
+    // Called from the row-reading thread only
+    String hash(Map<String, String> rowData) {
+        return hash(rowData, null);
+    }
+
+    // rowTemplate identifies the row's own template when rows don't all share the run's one
+    String hash(Map<String, String> rowData, byte[] rowTemplate) {
+        digest.reset();
+        digest.update(templateHash);
+        if (rowTemplate != null) {
+            digest.update(rowTemplate);
+        }
+        for (Map.Entry<String, String> field : rowData.entrySet()) {
+            update(field.getKey());
+            update(field.getValue());
+        }
+        return Sha256.toHex(digest.digest());
+    }
+
+    private void update(String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        int length = value == null ? -1 : bytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+
+    // True if the document was produced from the same template and row and is still on disk untouched
+    boolean isUpToDate(File outputFile, String hash) {
+        if (!claimed.add(outputFile.getName())) {
+            return false;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(outputFile.getName());
+        }
+        return entry != null && entry.hash.equals(hash) && outputFile.isFile() && outputFile.length() == entry.size;
+    }
+
+    // A document about to be written; it counts from published() on
+    synchronized void record(File outputFile, long size, String hash) {
+        unpublished.put(outputFile.getName(), new Entry(hash, size));
+    }
+
+    // The sink has the document in place under its name
+    synchronized void published(String fileName) throws IOException {
+        Entry entry = unpublished.remove(fileName);
+        if (entry == null) {
+            return;
+        }
+        entries.put(fileName, entry);
+        appender.write(entry.hash + SEPARATOR + entry.size + SEPARATOR + fileName + System.lineSeparator());
+        appender.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        appender.close();
+
+        Path compacted = path.resolveSibling(FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                writer.write(entry.getValue().hash + SEPARATOR + entry.getValue().size + SEPARATOR + entry.getKey() + System.lineSeparator());
+            }
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class Entry {
+        final String hash;
+        final long size;
+
+        Entry(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,241 @@
+package ru.unidubna;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Where a run spends its time. Updated from the reading thread and every worker at once,
+// so all counters are lock-free and can be read while the run is still going.
+public class RunMetrics {
+    public enum Phase {
+        CSV_READ("csvRead"),
+        ROW_PROJECTION("rowProjection"),
+        TEMPLATE_LOAD("templateLoad"),
+        // POI engine only: parsing the template copy for a document
+        DOCUMENT_OPEN("documentOpen"),
+        BINDING("binding"),
+        // serialising the document, into memory
+        DOCUMENT_WRITE("documentWrite"),
+        // the writer thread putting a finished document into the output folder or archive
+        FILE_WRITE("fileWrite");
+
+        private final String jsonName;
+
+        Phase(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Timer[] timers = new Timer[Phase.values().length];
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder placeholdersFilled = new LongAdder();
+    private final LongAdder defaultsApplied = new LongAdder();
+    private final LongAdder templateCacheHits = new LongAdder();
+    private final LongAdder templateCacheMisses = new LongAdder();
+    private final Histogram documentLatency = new Histogram();
+    // set once, when the first document of the run is in place; -1 until then
+    private final AtomicLong firstDocumentNanos = new AtomicLong(-1);
+    private volatile long firstDocumentUptimeMillis = -1;
+
+    public RunMetrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Timer();
+        }
+    }
+
+    // Adds the time since phaseStart (a System.nanoTime() value) to the phase
+    void record(Phase phase, long phaseStart) {
+        timers[phase.ordinal()].add(System.nanoTime() - phaseStart);
+    }
+
+    void rowProjected() {
+        rows.increment();
+    }
+
+    void placeholders(int filled, int defaults) {
+        placeholdersFilled.add(filled);
+        defaultsApplied.add(defaults);
+    }
+
+    void templateLookup(boolean hit) {
+        (hit ? templateCacheHits : templateCacheMisses).increment();
+    }
+
+    // One document done (written or failed), timed from the start of its generation
+    void documentFinished(long documentStart) {
+        documentLatency.add(System.nanoTime() - documentStart);
+        documents.increment();
+    }
+
+    // A document is in its place: written to the folder or into the archive
+    void documentWritten() {
+        long now = System.nanoTime();
+        if (firstDocumentNanos.get() < 0 && firstDocumentNanos.compareAndSet(-1, now - startNanos)) {
+            firstDocumentUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        }
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+
+    public long getDocuments() {
+        return documents.sum();
+    }
+
+    public long getPlaceholdersFilled() {
+        return placeholdersFilled.sum();
+    }
+
+    public long getDefaultsApplied() {
+        return defaultsApplied.sum();
+    }
+
+    public long getTemplateCacheHits() {
+        return templateCacheHits.sum();
+    }
+
+    public long getTemplateCacheMisses() {
+        return templateCacheMisses.sum();
+    }
+
+    public long getTotalMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(timers[phase.ordinal()].totalNanos.sum());
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    // From the start of the run to the first written document; -1 if none was written
+    public long getFirstDocumentMillis() {
+        long nanos = firstDocumentNanos.get();
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    // From the launch of the JVM to the first written document of this run, so it covers class loading
+    // and the time spent choosing files too; -1 if none was written
+    public long getFirstDocumentSinceLaunchMillis() {
+        return firstDocumentUptimeMillis;
+    }
+
+    public double getDocumentsPerSecond() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos <= 0 ? 0 : getDocuments() * 1e9 / elapsedNanos;
+    }
+
+    // Upper bound of the per-document time below which the given share (0..1) of documents finished
+    public long getLatencyPercentileMicros(double quantile) {
+        return documentLatency.percentileMicros(quantile);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"timers\":{");
+        Phase[] phases = Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            Timer timer = timers[i];
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(phases[i].jsonName).append("\":{")
+                    .append("\"count\":").append(timer.count.sum())
+                    .append(",\"totalMillis\":").append(getTotalMillis(phases[i]))
+                    .append(",\"maxMicros\":").append(TimeUnit.NANOSECONDS.toMicros(timer.maxNanos.get()))
+                    .append('}');
+        }
+        json.append("},\"counters\":{")
+                .append("\"rows\":").append(getRows())
+                .append(",\"documents\":").append(getDocuments())
+                .append(",\"placeholdersFilled\":").append(getPlaceholdersFilled())
+                .append(",\"defaultsApplied\":").append(getDefaultsApplied())
+                .append(",\"templateCacheHits\":").append(getTemplateCacheHits())
+                .append(",\"templateCacheMisses\":").append(getTemplateCacheMisses())
+                .append("},\"documentsPerSecond\":").append(String.format(Locale.ROOT, "%.2f", getDocumentsPerSecond()))
+                .append(",\"firstDocumentMillis\":").append(getFirstDocumentMillis())
+                .append(",\"firstDocumentSinceLaunchMillis\":").append(getFirstDocumentSinceLaunchMillis())
+                .append(",\"documentLatencyMicros\":");
+        documentLatency.appendJson(json);
+        return json.append('}').toString();
+    }
+
+    private static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    // Power-of-two buckets in microseconds: bucket i holds times below 2^i µs
+    private static final class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        long percentileMicros(double quantile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(1L << i, TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+        }
+
+        void appendJson(StringBuilder json) {
+            long count = count();
+            json.append("{\"count\":").append(count)
+                    .append(",\"mean\":").append(count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum()) / count)
+                    .append(",\"p50\":").append(percentileMicros(0.5))
+                    .append(",\"p90\":").append(percentileMicros(0.9))
+                    .append(",\"p99\":").append(percentileMicros(0.99))
+                    .append(",\"max\":").append(TimeUnit.NANOSECONDS.toMicros(maxNanos.get()))
+                    .append(",\"buckets\":{");
+            boolean first = true;
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = counts.get(i);
+                if (bucketCount == 0) continue;
+                if (!first) {
+                    json.append(',');
+                }
+                // key is the bucket's exclusive upper bound in µs
+                json.append("\"<").append(1L << i).append("\":").append(bucketCount);
+                first = false;
+            }
+            json.append("}}");
+        }
+    }
+}
\ No newline at end of file
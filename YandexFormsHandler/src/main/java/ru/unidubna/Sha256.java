@@ -0,0 +1,31 @@
+package ru.unidubna;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// SHA-256 as the template cache and the run manifest use it: hashes are compared as lower-case hex
+final class Sha256 {
+    private Sha256() {
+    }
+
+    // every Java platform has SHA-256
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] content) {
+        return toHex(digest().digest(content));
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
\ No newline at end of file
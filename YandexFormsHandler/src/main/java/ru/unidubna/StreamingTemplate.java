@@ -0,0 +1,1194 @@
+package ru.unidubna;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Output engine that works on the .docx package directly instead of through POI.
+// The main document, headers and footers are pre-rendered into literal XML chunks with a hole
+// for every [ОТВЕТ] paragraph; all other ZIP entries are copied byte for byte.
+// Placeholders split over several w:r runs are replaced in place, keeping the runs' formatting.
+// The body of the main document is also known on its own, for merging many filled copies into one document.
+final class StreamingTemplate {
+    private static final String W_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String OFFICE_DOCUMENT_REL = "/officeDocument";
+    private static final String HEADER_REL = "/header";
+    private static final String FOOTER_REL = "/footer";
+    private static final String NUMBERING_REL = "/numbering";
+    private static final String DEFAULT_ANSWER = "Не указано";
+    // start tags whose id must be unique in a document: bookmarks, and drawings (wp:docPr)
+    private static final Pattern BOOKMARK_TAG = Pattern.compile("<(?:[\\w.-]+:)?bookmark(?:Start|End)\\s[^>]*>");
+    private static final Pattern DRAWING_TAG = Pattern.compile("<(?:[\\w.-]+:)?docPr\\s[^>]*>");
+    private static final Pattern ID_ATTRIBUTE = Pattern.compile("\\s(?:[\\w.-]+:)?id=[\"'](\\d+)[\"']");
+    private static final Pattern BOOKMARK_START_TAG = Pattern.compile("<(?:[\\w.-]+:)?bookmarkStart\\s[^>]*>");
+    private static final Pattern NAME_ATTRIBUTE = Pattern.compile("\\s(?:[\\w.-]+:)?name=[\"']([^\"']*)[\"']");
+    // a paragraph's list: w:numPr/w:numId
+    private static final Pattern NUM_ID_TAG = Pattern.compile("<(?:[\\w.-]+:)?numId\\s[^>]*>");
+    private static final Pattern VAL_ATTRIBUTE = Pattern.compile("\\s(?:[\\w.-]+:)?val=[\"'](\\d+)[\"']");
+
+    private static final XMLInputFactory XML_INPUT = createInputFactory();
+
+    private final String[] entryNames;
+    private final byte[][] rawEntries;
+    private final CompiledPart[] compiledEntries;
+    // [container][paragraph] texts, searched in the same order as the POI engine does
+    private final String[][] paragraphTexts;
+    private final int[] slotContainers;
+    private final int[] slotParagraphs;
+    private final Map<List<String>, String[]> bindings = new ConcurrentHashMap<>();
+    // index of the main document among the entries
+    private final int documentEntry;
+    // index of the numbering part, -1 if there is none
+    private final int numberingEntry;
+    // the main document cut around the children of w:body (the final w:sectPr goes with the tail);
+    // null when the template has no body to copy
+    private final MainDocument mainDocument;
+
+    private StreamingTemplate(String[] entryNames, byte[][] rawEntries, CompiledPart[] compiledEntries,
+                              String[][] paragraphTexts, int[] slotContainers, int[] slotParagraphs,
+                              int documentEntry, int numberingEntry, MainDocument mainDocument) {
+        this.entryNames = entryNames;
+        this.rawEntries = rawEntries;
+        this.compiledEntries = compiledEntries;
+        this.paragraphTexts = paragraphTexts;
+        this.slotContainers = slotContainers;
+        this.slotParagraphs = slotParagraphs;
+        this.documentEntry = documentEntry;
+        this.numberingEntry = numberingEntry;
+        this.mainDocument = mainDocument;
+    }
+
+    static StreamingTemplate compile(byte[] docx) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(docx))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    entries.put(entry.getName(), zis.readAllBytes());
+                }
+            }
+        }
+
+        String documentPart = findDocumentPart(entries);
+        if (documentPart == null || !entries.containsKey(documentPart)) {
+            throw new IOException("В шаблоне не найден основной документ Word");
+        }
+
+        // Header and footer parts in the order POI lists them: by relationship id
+        TreeMap<String, String> headers = new TreeMap<>();
+        TreeMap<String, String> footers = new TreeMap<>();
+        String numberingPart = null;
+        String documentRels = relsPartName(documentPart);
+        if (entries.containsKey(documentRels)) {
+            for (String[] rel : readRelationships(entries.get(documentRels))) {
+                String target = resolveTarget(documentPart, rel[2]);
+                if (rel[1].endsWith(HEADER_REL) && entries.containsKey(target)) {
+                    headers.put(rel[0], target);
+                } else if (rel[1].endsWith(FOOTER_REL) && entries.containsKey(target)) {
+                    footers.put(rel[0], target);
+                } else if (rel[1].endsWith(NUMBERING_REL) && entries.containsKey(target)) {
+                    numberingPart = target;
+                }
+            }
+        }
+
+        Layout layout = new Layout();
+        Map<String, CompiledPart> compiled = new HashMap<>();
+        PartCompiler documentCompiler = new PartCompiler("document", layout);
+        CompiledPart document = compilePart(documentCompiler, entries.get(documentPart));
+        compiled.put(documentPart, document);
+        for (String header : headers.values()) {
+            compiled.put(header, compilePart(new PartCompiler("hdr", layout), entries.get(header)));
+        }
+        for (String footer : footers.values()) {
+            compiled.put(footer, compilePart(new PartCompiler("ftr", layout), entries.get(footer)));
+        }
+        MainDocument mainDocument = null;
+        if (documentCompiler.bodyStart != null && documentCompiler.bodyEnd != null) {
+            // drawing ids are unique across all parts, bookmark ids within the main document
+            long maxDrawingId = -1;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                if (entry.getKey().endsWith(".xml")) {
+                    maxDrawingId = Math.max(maxDrawingId, maxId(DRAWING_TAG, new String(entry.getValue(), StandardCharsets.ISO_8859_1)));
+                }
+            }
+            long maxBookmarkId = maxId(BOOKMARK_TAG, new String(entries.get(documentPart), StandardCharsets.ISO_8859_1));
+            Numbering numbering = numberingPart == null ? null : Numbering.read(entries.get(numberingPart));
+            mainDocument = new MainDocument(document, documentCompiler.bodyStart, documentCompiler.bodyEnd,
+                    documentCompiler.bodyPrefix, maxBookmarkId + 1, maxDrawingId + 1, numbering);
+        }
+
+        int size = entries.size();
+        String[] entryNames = new String[size];
+        byte[][] rawEntries = new byte[size][];
+        CompiledPart[] compiledEntries = new CompiledPart[size];
+        int documentEntry = -1;
+        int numberingEntry = -1;
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            entryNames[i] = entry.getKey();
+            compiledEntries[i] = compiled.get(entry.getKey());
+            rawEntries[i] = compiledEntries[i] == null ? entry.getValue() : null;
+            if (entry.getKey().equals(documentPart)) {
+                documentEntry = i;
+            } else if (entry.getKey().equals(numberingPart)) {
+                numberingEntry = i;
+            }
+            i++;
+        }
+
+        return new StreamingTemplate(entryNames, rawEntries, compiledEntries,
+                layout.paragraphTexts(), layout.slotContainers(), layout.slotParagraphs(), documentEntry,
+                numberingEntry, mainDocument);
+    }
+
+    void write(Map<String, String> studentData, OutputStream out) throws IOException {
+        write(answers(studentData, null), out);
+    }
+
+    // Escaped UTF-8 answer for every slot, in slot order
+    byte[][] answers(Map<String, String> studentData, RunMetrics metrics) {
+        String[] slotQuestions = bind(new ArrayList<>(studentData.keySet()));
+        byte[][] answers = new byte[slotQuestions.length][];
+        int defaults = 0;
+        for (int i = 0; i < slotQuestions.length; i++) {
+            String answer = slotQuestions[i] == null ? null : studentData.get(slotQuestions[i]);
+            if (answer == null || answer.trim().isEmpty()) {
+                answer = DEFAULT_ANSWER;
+                defaults++;
+            }
+            answers[i] = escapeText(answer).getBytes(StandardCharsets.UTF_8);
+        }
+        if (metrics != null) {
+            metrics.placeholders(answers.length - defaults, defaults);
+        }
+        return answers;
+    }
+
+    void write(byte[][] answers, OutputStream out) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(out);
+        for (int i = 0; i < entryNames.length; i++) {
+            writeEntry(zos, i, answers);
+        }
+        zos.finish();
+    }
+
+    private void writeEntry(ZipOutputStream zos, int entry, byte[][] answers) throws IOException {
+        zos.putNextEntry(new ZipEntry(entryNames[entry]));
+        if (compiledEntries[entry] == null) {
+            zos.write(rawEntries[entry]);
+        } else {
+            compiledEntries[entry].write(zos, answers);
+        }
+        zos.closeEntry();
+    }
+
+    // Only the row's copy of the body, for MergedDocument.append(); copy tells the bodies of one document apart
+    void writeBody(byte[][] answers, int copy, OutputStream out) throws IOException {
+        requireBody().writeBody(out, answers, copy);
+    }
+
+    // A document the bodies are appended to, written into out as it grows; out is closed with it
+    MergedDocument merged(OutputStream out) throws IOException {
+        return new MergedDocument(requireBody(), out);
+    }
+
+    private MainDocument requireBody() throws IOException {
+        if (mainDocument == null) {
+            throw new IOException("В шаблоне не найдено тело документа (w:body), объединить справки нельзя");
+        }
+        return mainDocument;
+    }
+
+    // One .docx holding a filled copy of the template body per document, separated by page breaks.
+    // Every other part - styles, settings, headers, footers, media - is written once, as in the template.
+    // The numbering part gets the lists of every copy, so it is held back until finish(). The main document
+    // entry stays open while bodies are appended, so only the copy being written is in memory. A merged
+    // document has one set of headers and footers for all pages, so their placeholders get the default answer.
+    final class MergedDocument implements Closeable {
+        private final MainDocument mainDocument;
+        private final ZipOutputStream zos;
+        private final byte[][] defaults;
+        // -1 when the numbering part is written as it is
+        private final int heldEntry;
+        private final BitSet copies = new BitSet();
+        private boolean empty = true;
+
+        private MergedDocument(MainDocument mainDocument, OutputStream out) throws IOException {
+            this.mainDocument = mainDocument;
+            this.zos = new ZipOutputStream(out);
+            this.defaults = new byte[slotContainers.length][];
+            Arrays.fill(defaults, escapeText(DEFAULT_ANSWER).getBytes(StandardCharsets.UTF_8));
+            this.heldEntry = mainDocument.numbering == null ? -1 : numberingEntry;
+
+            for (int i = 0; i < documentEntry; i++) {
+                if (i != heldEntry) {
+                    writeEntry(zos, i, defaults);
+                }
+            }
+            zos.putNextEntry(new ZipEntry(entryNames[documentEntry]));
+            mainDocument.head.write(zos, defaults);
+        }
+
+        // A body from writeBody() with the same copy; returns the stream to write it into, which the caller
+        // doesn't close
+        OutputStream append(int copy) throws IOException {
+            if (!empty) {
+                zos.write(mainDocument.pageBreak);
+            }
+            empty = false;
+            copies.set(copy);
+            return new FilterOutputStream(zos) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // the document goes on
+                }
+            };
+        }
+
+        // Ends the main document and writes the parts that follow it in the template
+        void finish() throws IOException {
+            mainDocument.tail.write(zos, defaults);
+            zos.closeEntry();
+            for (int i = documentEntry + 1; i < entryNames.length; i++) {
+                if (i != heldEntry) {
+                    writeEntry(zos, i, defaults);
+                }
+            }
+            if (heldEntry >= 0) {
+                zos.putNextEntry(new ZipEntry(entryNames[heldEntry]));
+                zos.write(mainDocument.numbering.withCopies(rawEntries[heldEntry], copies));
+                zos.closeEntry();
+            }
+            zos.finish();
+        }
+
+        // Without finish() the package lacks the parts after the main document
+        @Override
+        public void close() throws IOException {
+            zos.close();
+        }
+    }
+
+    // For every slot: the question whose answer goes there, or null for the default
+    private String[] bind(List<String> questions) {
+        String[] slotQuestions = bindings.get(questions);
+        if (slotQuestions == null) {
+            String[][] owners = CompiledTemplate.assignQuestions(paragraphTexts, questions);
+            slotQuestions = new String[slotContainers.length];
+            for (int i = 0; i < slotQuestions.length; i++) {
+                slotQuestions[i] = owners[slotContainers[i]][slotParagraphs[i]];
+            }
+            bindings.putIfAbsent(new ArrayList<>(questions), slotQuestions);
+        }
+        return slotQuestions;
+    }
+
+    // Literal chunks interleaved with slot numbers: literal[0] answer[slot[0]] literal[1] ... literal[n]
+    private static final class CompiledPart {
+        final byte[][] literals;
+        final int[] slots;
+
+        CompiledPart(byte[][] literals, int[] slots) {
+            this.literals = literals;
+            this.slots = slots;
+        }
+
+        void write(OutputStream out, byte[][] answers) throws IOException {
+            for (int i = 0; i < slots.length; i++) {
+                out.write(literals[i]);
+                out.write(answers[slots[i]]);
+            }
+            out.write(literals[slots.length]);
+        }
+
+        // The output between two positions {literal, byte offset in it}
+        CompiledPart slice(int[] from, int[] to) {
+            byte[][] sliced = new byte[to[0] - from[0] + 1][];
+            for (int i = from[0]; i <= to[0]; i++) {
+                int start = i == from[0] ? from[1] : 0;
+                int end = i == to[0] ? to[1] : literals[i].length;
+                sliced[i - from[0]] = Arrays.copyOfRange(literals[i], start, end);
+            }
+            return new CompiledPart(sliced, Arrays.copyOfRange(slots, from[0], to[0]));
+        }
+
+        int[] end() {
+            return new int[]{slots.length, literals[slots.length].length};
+        }
+    }
+
+    // Highest id of the given start tags in the XML, -1 if there are none
+    private static long maxId(Pattern tag, String xml) {
+        long max = -1;
+        Matcher tags = tag.matcher(xml);
+        while (tags.find()) {
+            Matcher id = ID_ATTRIBUTE.matcher(tags.group());
+            if (id.find()) {
+                max = Math.max(max, Long.parseLong(id.group(1)));
+            }
+        }
+        return max;
+    }
+
+    // The main document cut into head (up to the children of w:body), body and tail.
+    // Body copies after the first shift their bookmark and drawing ids by copy * stride. Copy 0 keeps the
+    // template's ids, and the strides lie above every id in use, so no two copies share one.
+    // Bookmark names get "_<copy>" appended, and lists move to numbering definitions of their own copy
+    // (see Numbering), so every certificate's lists count from their start again.
+    private static final class MainDocument {
+        final CompiledPart head;
+        final CompiledPart body;
+        final CompiledPart tail;
+        final byte[] pageBreak;
+        // null when the body has no list to restart
+        final Numbering numbering;
+        // ids and names in the body literals, in output order
+        private final IdSpot[] idSpots;
+
+        MainDocument(CompiledPart document, int[] bodyStart, int[] bodyEnd, String prefix, long bookmarkStride,
+                     long drawingStride, Numbering numbering) {
+            this.head = document.slice(new int[]{0, 0}, bodyStart);
+            this.body = document.slice(bodyStart, bodyEnd);
+            this.tail = document.slice(bodyEnd, document.end());
+            this.pageBreak = pageBreak(prefix).getBytes(StandardCharsets.UTF_8);
+
+            List<IdSpot> spots = new ArrayList<>();
+            List<IdSpot> lists = new ArrayList<>();
+            for (int i = 0; i < body.literals.length; i++) {
+                // the literals are our own output: ids are plain digits, never split by a slot
+                String literal = new String(body.literals[i], StandardCharsets.ISO_8859_1);
+                findIds(BOOKMARK_TAG, ID_ATTRIBUTE, literal, i, bookmarkStride, spots);
+                findIds(DRAWING_TAG, ID_ATTRIBUTE, literal, i, drawingStride, spots);
+                findNames(literal, i, spots);
+                if (numbering != null) {
+                    findIds(NUM_ID_TAG, VAL_ATTRIBUTE, literal, i, numbering.stride, lists);
+                }
+            }
+            // numId 0 means no list, and an undefined one numbers nothing either
+            lists.removeIf(spot -> !numbering.restarts(spot.value));
+            spots.addAll(lists);
+            spots.sort(Comparator.<IdSpot>comparingInt(spot -> spot.literal).thenComparingInt(spot -> spot.start));
+            this.idSpots = spots.toArray(new IdSpot[0]);
+            this.numbering = lists.isEmpty() ? null : numbering;
+        }
+
+        private static void findIds(Pattern tag, Pattern attribute, String literal, int index, long stride,
+                                    List<IdSpot> spots) {
+            Matcher tags = tag.matcher(literal);
+            while (tags.find()) {
+                Matcher id = attribute.matcher(tags.group());
+                if (id.find()) {
+                    int start = tags.start() + id.start(1);
+                    spots.add(new IdSpot(index, start, start + id.group(1).length(), Long.parseLong(id.group(1)), stride));
+                }
+            }
+        }
+
+        private static void findNames(String literal, int index, List<IdSpot> spots) {
+            Matcher tags = BOOKMARK_START_TAG.matcher(literal);
+            while (tags.find()) {
+                Matcher name = NAME_ATTRIBUTE.matcher(tags.group());
+                if (name.find()) {
+                    int start = tags.start() + name.start(1);
+                    spots.add(new IdSpot(index, start, start + name.group(1).length()));
+                }
+            }
+        }
+
+        void writeBody(OutputStream out, byte[][] answers, int copy) throws IOException {
+            if (copy == 0 || idSpots.length == 0) {
+                body.write(out, answers);
+                return;
+            }
+            int spot = 0;
+            for (int i = 0; i < body.literals.length; i++) {
+                byte[] literal = body.literals[i];
+                int from = 0;
+                for (; spot < idSpots.length && idSpots[spot].literal == i; spot++) {
+                    IdSpot id = idSpots[spot];
+                    if (id.name) {
+                        out.write(literal, from, id.end - from);
+                        out.write(("_" + copy).getBytes(StandardCharsets.US_ASCII));
+                    } else {
+                        out.write(literal, from, id.start - from);
+                        out.write(Long.toString(id.value + copy * id.stride).getBytes(StandardCharsets.US_ASCII));
+                    }
+                    from = id.end;
+                }
+                out.write(literal, from, literal.length - from);
+                if (i < body.slots.length) {
+                    out.write(answers[body.slots[i]]);
+                }
+            }
+        }
+
+        // a paragraph holding only a page break, as Word inserts one
+        private static String pageBreak(String prefix) {
+            if (prefix.isEmpty()) {
+                // the default namespace doesn't apply to attributes
+                return "<p><r><br xmlns:w=\"" + W_NS + "\" w:type=\"page\"/></r></p>";
+            }
+            String p = prefix + ":";
+            return "<" + p + "p><" + p + "r><" + p + "br " + p + "type=\"page\"/></" + p + "r></" + p + "p>";
+        }
+    }
+
+    // Digits of an id in a body literal, and what a copy adds to them; or a bookmark name, which a copy extends
+    private static final class IdSpot {
+        final int literal;
+        final int start;
+        final int end;
+        final long value;
+        final long stride;
+        final boolean name;
+
+        IdSpot(int literal, int start, int end, long value, long stride) {
+            this.literal = literal;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.stride = stride;
+            this.name = false;
+        }
+
+        IdSpot(int literal, int start, int end) {
+            this.literal = literal;
+            this.start = start;
+            this.end = end;
+            this.value = 0;
+            this.stride = 0;
+            this.name = true;
+        }
+    }
+
+    // The w:num definitions of the numbering part. Paragraphs of one w:num form one list, so a copy's lists
+    // need definitions of their own: numId + copy * stride, on the same w:abstractNum, with a w:startOverride
+    // on every level - otherwise Word would still count on from the copy before.
+    private static final class Numbering {
+        private static final int LEVELS = 9;
+
+        // numId -> abstractNumId
+        private final Map<Long, Long> abstractNums;
+        // numId -> start of each level
+        private final Map<Long, long[]> starts;
+        private final String prefix;
+        final long stride;
+
+        private Numbering(Map<Long, Long> abstractNums, Map<Long, long[]> starts, String prefix) {
+            this.abstractNums = abstractNums;
+            this.starts = starts;
+            this.prefix = prefix;
+            this.stride = abstractNums.keySet().stream().mapToLong(Long::longValue).max().orElse(0) + 1;
+        }
+
+        static Numbering read(byte[] xml) throws IOException {
+            // abstractNumId -> start of each level; a level the definition lacks starts at 1, as Word shows it
+            Map<Long, long[]> levelStarts = new HashMap<>();
+            Map<Long, Long> abstractNums = new HashMap<>();
+            // numId -> w:startOverride of each level, -1 where there is none
+            Map<Long, long[]> overrides = new HashMap<>();
+            String prefix = null;
+            try {
+                XMLStreamReader reader = XML_INPUT.createXMLStreamReader(new ByteArrayInputStream(xml));
+                try {
+                    long[] levels = null;
+                    int level = -1;
+                    long num = -1;
+                    while (reader.hasNext()) {
+                        int event = reader.next();
+                        if (event == XMLStreamConstants.END_ELEMENT && W_NS.equals(reader.getNamespaceURI())) {
+                            switch (reader.getLocalName()) {
+                                case "abstractNum":
+                                    levels = null;
+                                    break;
+                                case "num":
+                                    num = -1;
+                                    break;
+                                case "lvl":
+                                case "lvlOverride":
+                                    level = -1;
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                        if (event != XMLStreamConstants.START_ELEMENT || !W_NS.equals(reader.getNamespaceURI())) {
+                            continue;
+                        }
+                        if (prefix == null) {
+                            prefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+                        }
+                        switch (reader.getLocalName()) {
+                            case "abstractNum":
+                                long abstractNum = number(reader, "abstractNumId");
+                                if (abstractNum >= 0) {
+                                    levels = new long[LEVELS];
+                                    Arrays.fill(levels, 1);
+                                    levelStarts.put(abstractNum, levels);
+                                }
+                                break;
+                            case "num":
+                                num = number(reader, "numId");
+                                if (num >= 0) {
+                                    long[] numOverrides = new long[LEVELS];
+                                    Arrays.fill(numOverrides, -1);
+                                    overrides.put(num, numOverrides);
+                                }
+                                break;
+                            case "lvl":
+                            case "lvlOverride":
+                                level = (int) number(reader, "ilvl");
+                                if (level >= LEVELS) {
+                                    level = -1;
+                                }
+                                if (level >= 0 && levels != null && reader.getLocalName().equals("lvl")) {
+                                    // without w:start a level starts at 0
+                                    levels[level] = 0;
+                                }
+                                break;
+                            case "start":
+                                if (levels != null && level >= 0) {
+                                    levels[level] = Math.max(0, number(reader, "val"));
+                                }
+                                break;
+                            case "abstractNumId":
+                                if (num >= 0) {
+                                    abstractNums.put(num, number(reader, "val"));
+                                }
+                                break;
+                            case "startOverride":
+                                if (num >= 0 && level >= 0) {
+                                    overrides.get(num)[level] = number(reader, "val");
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Не удалось разобрать нумерацию шаблона: " + e.getMessage(), e);
+            }
+
+            Map<Long, long[]> starts = new HashMap<>();
+            abstractNums.values().removeIf(abstractNum -> !levelStarts.containsKey(abstractNum));
+            for (Map.Entry<Long, Long> num : abstractNums.entrySet()) {
+                long[] numStarts = levelStarts.get(num.getValue()).clone();
+                long[] numOverrides = overrides.get(num.getKey());
+                for (int level = 0; level < LEVELS; level++) {
+                    if (numOverrides[level] >= 0) {
+                        numStarts[level] = numOverrides[level];
+                    }
+                }
+                starts.put(num.getKey(), numStarts);
+            }
+            return abstractNums.isEmpty() ? null : new Numbering(abstractNums, starts, prefix);
+        }
+
+        // a whole non-negative attribute of the element, -1 if it has none
+        private static long number(XMLStreamReader reader, String name) {
+            String value = reader.getAttributeValue(W_NS, name);
+            try {
+                return value == null ? -1 : Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        boolean restarts(long numId) {
+            return abstractNums.containsKey(numId);
+        }
+
+        // The part with a w:num for every list of every copy after the first, after the template's own ones
+        byte[] withCopies(byte[] xml, BitSet copies) {
+            String p = prefix.isEmpty() ? "" : prefix + ":";
+            // the default namespace doesn't apply to attributes
+            String a = prefix.isEmpty() ? "w:" : p;
+            String declaration = prefix.isEmpty() ? " xmlns:w=\"" + W_NS + "\"" : "";
+            StringBuilder nums = new StringBuilder();
+            for (int copy = copies.nextSetBit(1); copy >= 0; copy = copies.nextSetBit(copy + 1)) {
+                for (Map.Entry<Long, Long> num : new TreeMap<>(abstractNums).entrySet()) {
+                    nums.append('<').append(p).append("num").append(declaration).append(' ').append(a).append("numId=\"")
+                            .append(num.getKey() + copy * stride).append("\"><").append(p).append("abstractNumId ")
+                            .append(a).append("val=\"").append(num.getValue()).append("\"/>");
+                    long[] numStarts = starts.get(num.getKey());
+                    for (int level = 0; level < LEVELS; level++) {
+                        nums.append('<').append(p).append("lvlOverride ").append(a).append("ilvl=\"").append(level)
+                                .append("\"><").append(p).append("startOverride ").append(a).append("val=\"")
+                                .append(numStarts[level]).append("\"/></").append(p).append("lvlOverride>");
+                    }
+                    nums.append("</").append(p).append("num>");
+                }
+            }
+
+            // w:num elements go last, before w:numIdMacAtCleanup
+            String text = new String(xml, StandardCharsets.ISO_8859_1);
+            int at = text.indexOf("<" + p + "numIdMacAtCleanup");
+            if (at < 0) {
+                at = text.lastIndexOf("</" + p + "numbering");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + nums.length());
+            out.write(xml, 0, at);
+            out.writeBytes(nums.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(xml, at, xml.length - at);
+            return out.toByteArray();
+        }
+    }
+
+    // Paragraph containers shared by all rewritten parts of one template
+    private static final class Layout {
+        final List<List<String>> containers = new ArrayList<>();
+        final List<Integer> slotContainers = new ArrayList<>();
+        final List<Integer> slotParagraphs = new ArrayList<>();
+
+        Layout() {
+            containers.add(new ArrayList<>()); // document body
+        }
+
+        int newContainer() {
+            containers.add(new ArrayList<>());
+            return containers.size() - 1;
+        }
+
+        int addParagraph(int container, String text) {
+            containers.get(container).add(text);
+            return containers.get(container).size() - 1;
+        }
+
+        int addSlot(int container, int paragraph) {
+            slotContainers.add(container);
+            slotParagraphs.add(paragraph);
+            return slotContainers.size() - 1;
+        }
+
+        String[][] paragraphTexts() {
+            String[][] texts = new String[containers.size()][];
+            for (int c = 0; c < texts.length; c++) {
+                texts[c] = containers.get(c).toArray(new String[0]);
+            }
+            return texts;
+        }
+
+        int[] slotContainers() {
+            return slotContainers.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        int[] slotParagraphs() {
+            return slotParagraphs.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static CompiledPart compilePart(PartCompiler compiler, byte[] xml) throws IOException {
+        try {
+            return compiler.compile(xml);
+        } catch (XMLStreamException e) {
+            throw new IOException("Не удалось разобрать XML шаблона: " + e.getMessage(), e);
+        }
+    }
+
+    // Re-serialises one part, buffering every paragraph the POI engine would look at
+    // (body, top-level table cells, header/footer level) until its text is known.
+    private static final class PartCompiler {
+        private final String rootName;
+        private final Layout layout;
+        private final List<byte[]> literals = new ArrayList<>();
+        private final List<Integer> slots = new ArrayList<>();
+        private final StringBuilder literal = new StringBuilder();
+        private final Deque<String> stack = new ArrayDeque<>();
+        private boolean startTagOpen;
+        private final int partContainer;
+        private int cellContainer = -1;
+        // main document only: positions in the output around the children of w:body, see CompiledPart.slice()
+        int[] bodyStart;
+        int[] bodyEnd;
+        String bodyPrefix;
+
+        // state of the paragraph being buffered
+        private List<Object> paragraph;
+        private StringBuilder paragraphLiteral;
+        private int paragraphDepth;
+        private int paragraphContainer;
+        private int nestedParagraphs;
+        private boolean inText;
+
+        PartCompiler(String rootName, Layout layout) {
+            this.rootName = rootName;
+            this.layout = layout;
+            // each header and footer is a container of its own, after the body and its table cells
+            this.partContainer = rootName.equals("document") ? 0 : layout.newContainer();
+        }
+
+        CompiledPart compile(byte[] xml) throws XMLStreamException {
+            literal.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n");
+
+            XMLStreamReader reader = XML_INPUT.createXMLStreamReader(new ByteArrayInputStream(xml));
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            startElement(reader);
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            endElement(reader);
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            characters(reader.getText());
+                            break;
+                        case XMLStreamConstants.COMMENT:
+                            closeStartTag();
+                            current().append("<!--").append(reader.getText()).append("-->");
+                            break;
+                        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                            closeStartTag();
+                            String data = reader.getPIData();
+                            current().append("<?").append(reader.getPITarget())
+                                    .append(data == null || data.isEmpty() ? "" : " " + data).append("?>");
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            flushLiteral();
+            return new CompiledPart(literals.toArray(new byte[0][]), slots.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        private void startElement(XMLStreamReader reader) {
+            closeStartTag();
+            String name = elementName(reader);
+            if (rootName.equals("document") && paragraph == null) {
+                if (name.equals("body") && matchesStack("document")) {
+                    bodyPrefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+                } else if (name.equals("sectPr") && matchesStack("body", "document") && bodyStart != null) {
+                    bodyEnd = position();
+                }
+            }
+
+            if (paragraph == null) {
+                if (name.equals("p") && isCollectedParagraph()) {
+                    paragraph = new ArrayList<>();
+                    paragraphLiteral = new StringBuilder();
+                    paragraphDepth = stack.size();
+                    paragraphContainer = stack.peek().equals("tc") ? cellContainer : partContainer;
+                    nestedParagraphs = 0;
+                } else if (name.equals("tc") && rootName.equals("document") && matchesStack("tr", "tbl", "body", "document")) {
+                    cellContainer = layout.newContainer();
+                }
+            } else if (name.equals("p")) {
+                // text boxes: their paragraphs are not part of this one's text
+                nestedParagraphs++;
+            } else if (nestedParagraphs == 0 && stack.peek().equals("r")) {
+                switch (name) {
+                    case "t":
+                        stack.push(name);
+                        paragraph.add(takeParagraphLiteral());
+                        paragraph.add(new TextStart(startTag(reader), hasPreserveSpace(reader)));
+                        inText = true;
+                        return;
+                    case "tab":
+                        paragraph.add(takeParagraphLiteral());
+                        paragraph.add(new FixedText("\t"));
+                        break;
+                    case "br":
+                    case "cr":
+                        paragraph.add(takeParagraphLiteral());
+                        paragraph.add(new FixedText("\n"));
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            stack.push(name);
+            current().append(startTag(reader));
+            startTagOpen = true;
+        }
+
+        private void endElement(XMLStreamReader reader) {
+            String name = stack.pop();
+            if (name.equals("body") && rootName.equals("document") && matchesStack("document")
+                    && bodyStart != null && bodyEnd == null) {
+                bodyEnd = position();
+            }
+
+            if (inText && name.equals("t")) {
+                inText = false;
+                paragraph.add(new TextEnd("</" + qualifiedName(reader) + ">"));
+                return;
+            }
+
+            if (startTagOpen) {
+                current().append("/>");
+                startTagOpen = false;
+            } else {
+                current().append("</").append(qualifiedName(reader)).append('>');
+            }
+
+            if (paragraph != null && name.equals("p")) {
+                if (stack.size() == paragraphDepth) {
+                    paragraph.add(takeParagraphLiteral());
+                    finishParagraph();
+                } else {
+                    nestedParagraphs--;
+                }
+            }
+        }
+
+        private void characters(String text) {
+            closeStartTag();
+            if (inText) {
+                paragraph.add(new Text(text));
+            } else {
+                escapeText(text, current());
+            }
+        }
+
+        // A paragraph is collected when the POI engine would see it as well
+        private boolean isCollectedParagraph() {
+            if (rootName.equals("document")) {
+                return matchesStack("body", "document") || matchesStack("tc", "tr", "tbl", "body", "document");
+            }
+            return matchesStack(rootName);
+        }
+
+        // Compares the element stack, innermost element first
+        private boolean matchesStack(String... expected) {
+            if (stack.size() != expected.length) {
+                return false;
+            }
+            Iterator<String> it = stack.iterator();
+            for (String name : expected) {
+                if (!it.next().equals(name)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void finishParagraph() {
+            List<Object> items = paragraph;
+            paragraph = null;
+
+            // Paragraph text as the template search sees it, and where each w:t sits in it
+            StringBuilder text = new StringBuilder();
+            Map<Text, Integer> textOffsets = new IdentityHashMap<>();
+            for (Object item : items) {
+                if (item instanceof Text) {
+                    textOffsets.put((Text) item, text.length());
+                    text.append(((Text) item).value);
+                } else if (item instanceof FixedText) {
+                    text.append(((FixedText) item).value);
+                }
+            }
+
+            String paragraphText = text.toString();
+            int paragraphIndex = layout.addParagraph(paragraphContainer, paragraphText);
+
+            List<Integer> occurrences = new ArrayList<>();
+            int placeholderLength = WordTemplateProcessor.ANSWER_PLACEHOLDER.length();
+            int found = paragraphText.indexOf(WordTemplateProcessor.ANSWER_PLACEHOLDER);
+            while (found >= 0) {
+                occurrences.add(found);
+                found = paragraphText.indexOf(WordTemplateProcessor.ANSWER_PLACEHOLDER, found + placeholderLength);
+            }
+
+            int slot = occurrences.isEmpty() ? -1 : layout.addSlot(paragraphContainer, paragraphIndex);
+            for (int i = 0; i < items.size(); i++) {
+                Object item = items.get(i);
+                if (item instanceof String) {
+                    literal.append((String) item);
+                } else if (item instanceof TextStart) {
+                    TextStart start = (TextStart) item;
+                    literal.append(start.tag);
+                    // a run whose text changes length may gain leading or trailing spaces
+                    Text content = i + 1 < items.size() && items.get(i + 1) instanceof Text ? (Text) items.get(i + 1) : null;
+                    if (!start.preservesSpace && content != null
+                            && touchesPlaceholder(textOffsets.get(content), content.value.length(), occurrences, placeholderLength)) {
+                        literal.append(" xml:space=\"preserve\"");
+                    }
+                    literal.append('>');
+                } else if (item instanceof Text) {
+                    Text content = (Text) item;
+                    int offset = textOffsets.get(content);
+                    int copied = 0;
+                    for (int occurrence : occurrences) {
+                        int end = occurrence + placeholderLength;
+                        if (end <= offset || occurrence >= offset + content.value.length()) {
+                            continue;
+                        }
+                        escapeText(content.value.substring(copied, Math.max(occurrence - offset, 0)), literal);
+                        if (occurrence >= offset) {
+                            // the answer goes where the placeholder starts
+                            flushLiteral();
+                            slots.add(slot);
+                        }
+                        copied = Math.min(end - offset, content.value.length());
+                    }
+                    escapeText(content.value.substring(copied), literal);
+                } else if (item instanceof TextEnd) {
+                    literal.append(((TextEnd) item).tag);
+                }
+            }
+        }
+
+        private static boolean touchesPlaceholder(int offset, int length, List<Integer> occurrences, int placeholderLength) {
+            for (int occurrence : occurrences) {
+                if (occurrence < offset + length && occurrence + placeholderLength > offset) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String takeParagraphLiteral() {
+            String chunk = paragraphLiteral.toString();
+            paragraphLiteral.setLength(0);
+            return chunk;
+        }
+
+        private void flushLiteral() {
+            literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+            literal.setLength(0);
+        }
+
+        private void closeStartTag() {
+            if (startTagOpen) {
+                current().append('>');
+                startTagOpen = false;
+                if (bodyPrefix != null && bodyStart == null && matchesStack("body", "document")) {
+                    bodyStart = position();
+                }
+            }
+        }
+
+        // where the next character of the part's output goes
+        private int[] position() {
+            return new int[]{literals.size(), literal.toString().getBytes(StandardCharsets.UTF_8).length};
+        }
+
+        private StringBuilder current() {
+            return paragraph != null ? paragraphLiteral : literal;
+        }
+
+        private static String elementName(XMLStreamReader reader) {
+            return W_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName()
+                    : "{" + reader.getNamespaceURI() + "}" + reader.getLocalName();
+        }
+
+        private static String qualifiedName(XMLStreamReader reader) {
+            String prefix = reader.getPrefix();
+            return prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+        }
+
+        // Start tag without the closing '>'
+        private static String startTag(XMLStreamReader reader) {
+            StringBuilder tag = new StringBuilder("<").append(qualifiedName(reader));
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                String prefix = reader.getNamespacePrefix(i);
+                tag.append(prefix == null || prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"");
+                escapeAttribute(reader.getNamespaceURI(i), tag);
+                tag.append('"');
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String prefix = reader.getAttributePrefix(i);
+                tag.append(' ');
+                if (prefix != null && !prefix.isEmpty()) {
+                    tag.append(prefix).append(':');
+                }
+                tag.append(reader.getAttributeLocalName(i)).append("=\"");
+                escapeAttribute(reader.getAttributeValue(i), tag);
+                tag.append('"');
+            }
+            return tag.toString();
+        }
+
+        private static boolean hasPreserveSpace(XMLStreamReader reader) {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                if ("space".equals(reader.getAttributeLocalName(i)) && "preserve".equals(reader.getAttributeValue(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class TextStart {
+        final String tag;
+        final boolean preservesSpace;
+
+        TextStart(String tag, boolean preservesSpace) {
+            this.tag = tag;
+            this.preservesSpace = preservesSpace;
+        }
+    }
+
+    private static final class TextEnd {
+        final String tag;
+
+        TextEnd(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static final class Text {
+        final String value;
+
+        Text(String value) {
+            this.value = value;
+        }
+    }
+
+    // Tabs and breaks: part of the paragraph text, but never rewritten
+    private static final class FixedText {
+        final String value;
+
+        FixedText(String value) {
+            this.value = value;
+        }
+    }
+
+    static String escapeText(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        escapeText(text, escaped);
+        return escaped.toString();
+    }
+
+    static void escapeText(String text, StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                default:
+                    // characters XML 1.0 cannot carry at all are dropped
+                    if (ch >= 0x20 && ch != 0xFFFE && ch != 0xFFFF || ch == '\t' || ch == '\n' || ch == '\r') {
+                        out.append(ch);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static void escapeAttribute(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\t':
+                    out.append("&#9;");
+                    break;
+                case '\n':
+                    out.append("&#10;");
+                    break;
+                case '\r':
+                    out.append("&#13;");
+                    break;
+                default:
+                    escapeText(String.valueOf(ch), out);
+                    break;
+            }
+        }
+    }
+
+    private static String findDocumentPart(Map<String, byte[]> entries) throws IOException {
+        byte[] rootRels = entries.get("_rels/.rels");
+        if (rootRels != null) {
+            for (String[] rel : readRelationships(rootRels)) {
+                if (rel[1].endsWith(OFFICE_DOCUMENT_REL)) {
+                    return resolveTarget("", rel[2]);
+                }
+            }
+        }
+        return entries.containsKey("word/document.xml") ? "word/document.xml" : null;
+    }
+
+    private static String relsPartName(String partName) {
+        int slash = partName.lastIndexOf('/');
+        return partName.substring(0, slash + 1) + "_rels/" + partName.substring(slash + 1) + ".rels";
+    }
+
+    private static String resolveTarget(String sourcePart, String target) {
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+        Deque<String> path = new ArrayDeque<>();
+        String[] sourceSegments = sourcePart.split("/");
+        for (int i = 0; i < sourceSegments.length - 1; i++) {
+            path.addLast(sourceSegments[i]);
+        }
+        for (String segment : target.split("/")) {
+            if (segment.equals("..")) {
+                path.pollLast();
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                path.addLast(segment);
+            }
+        }
+        return String.join("/", path);
+    }
+
+    // {Id, Type, Target} of every internal relationship
+    private static List<String[]> readRelationships(byte[] xml) throws IOException {
+        List<String[]> relationships = new ArrayList<>();
+        try {
+            XMLStreamReader reader = XML_INPUT.createXMLStreamReader(new ByteArrayInputStream(xml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(reader.getLocalName())
+                            && REL_NS.equals(reader.getNamespaceURI())
+                            && !"External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+                        relationships.add(new String[]{
+                                reader.getAttributeValue(null, "Id"),
+                                reader.getAttributeValue(null, "Type"),
+                                reader.getAttributeValue(null, "Target")});
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Не удалось разобрать связи шаблона: " + e.getMessage(), e);
+        }
+        return relationships;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
\ No newline at end of file
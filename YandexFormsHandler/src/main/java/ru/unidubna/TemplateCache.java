@@ -0,0 +1,137 @@
+package ru.unidubna;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compiled templates kept between lookups, the least recently used dropped first.
+// A path is trusted while its modification time and size stay the same; otherwise the file is
+// read again and, if its bytes hash to a template already held (a touched or copied file,
+// the same upload in another request), that compiled template is reused.
+public final class TemplateCache {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final int capacity;
+    // content hash -> template, in access order
+    private final LinkedHashMap<String, CompiledTemplate> templates;
+    // path -> what the file looked like when it was last read
+    private final LinkedHashMap<String, FileStamp> stamps;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TemplateCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TemplateCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Размер кэша шаблонов должен быть не меньше 1: " + capacity);
+        }
+        this.capacity = capacity;
+        this.templates = new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                if (size() > TemplateCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        // stamps are tiny, but paths of one-off uploads must not pile up either
+        this.stamps = new LinkedHashMap<String, FileStamp>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileStamp> eldest) {
+                return size() > TemplateCache.this.capacity * 4;
+            }
+        };
+    }
+
+    // The compiled template for the file as it is now; metrics (may be null) gets the hit or miss
+    public CompiledTemplate get(String templatePath, RunMetrics metrics) throws IOException {
+        Path path = Paths.get(templatePath).toAbsolutePath().normalize();
+        String key = path.toString();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+
+        synchronized (this) {
+            FileStamp stamp = stamps.get(key);
+            if (stamp != null && stamp.modified == modified && stamp.size == size) {
+                CompiledTemplate template = templates.get(stamp.hash);
+                if (template != null) {
+                    return hit(template, metrics);
+                }
+            }
+        }
+
+        // read and compile outside the lock: other lookups carry on meanwhile
+        byte[] content = Files.readAllBytes(path);
+        String hash = hash(content);
+        synchronized (this) {
+            stamps.put(key, new FileStamp(modified, size, hash));
+            CompiledTemplate template = templates.get(hash);
+            if (template != null) {
+                return hit(template, metrics);
+            }
+        }
+
+        CompiledTemplate compiled = CompiledTemplate.fromBytes(content);
+        misses.incrementAndGet();
+        if (metrics != null) {
+            metrics.templateLookup(false);
+        }
+        synchronized (this) {
+            // two threads may have compiled the same file at once; keep the first
+            CompiledTemplate existing = templates.putIfAbsent(hash, compiled);
+            return existing != null ? existing : compiled;
+        }
+    }
+
+    private CompiledTemplate hit(CompiledTemplate template, RunMetrics metrics) {
+        hits.incrementAndGet();
+        if (metrics != null) {
+            metrics.templateLookup(true);
+        }
+        return template;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return templates.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    static String hash(byte[] content) {
+        return Sha256.hex(content);
+    }
+
+    private static final class FileStamp {
+        final long modified;
+        final long size;
+        final String hash;
+
+        FileStamp(long modified, long size, String hash) {
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,282 @@
+package ru.unidubna;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Long-running mode: watches a folder of Yandex Forms exports and, when a CSV grows,
+// generates documents only for the rows appended since the last look.
+// Per file it keeps the byte offset and row count consumed and the header schema,
+// so a new batch reads just the tail; a half-written last record waits for the next change.
+// Records end with '\n' or "\r\n". A last record without one is taken once the file has kept its size
+// for TAIL_MILLIS, and the line break it may get later is skipped. A file that breaks lines with a lone
+// '\r' can't be followed as it grows and is rejected.
+public class WatchFolderDaemon {
+    // a writer usually touches the file several times in a row; wait until the folder is quiet
+    private static final long QUIET_MILLIS = 500;
+    private static final long TAIL_MILLIS = 5000;
+
+    public interface BatchListener {
+        // firstRow is the 1-based number of the batch's first data row in the whole file
+        void batchProcessed(Path csv, int firstRow, GenerationReport report);
+
+        default void batchFailed(Path csv, Exception error) {
+            System.err.println("Ошибка обработки " + csv + ": " + error.getMessage());
+        }
+    }
+
+    private final Path inputDirectory;
+    private final String templatePath;
+    private final String outputDirectory;
+    private final GenerationOptions options;
+    private final BatchListener listener;
+    private final Map<Path, FileState> states = new HashMap<>();
+
+    public WatchFolderDaemon(Path inputDirectory, String templatePath, String outputDirectory,
+                             GenerationOptions options, BatchListener listener) {
+        if (options.getArchiveName() != null) {
+            throw new IllegalArgumentException("Архив нельзя дополнять по частям: режим наблюдения пишет отдельные файлы");
+        }
+        this.inputDirectory = inputDirectory;
+        this.templatePath = templatePath;
+        this.outputDirectory = outputDirectory;
+        this.options = options;
+        this.listener = listener;
+    }
+
+    // Processes the files already there, then every change until the thread is interrupted
+    public void run() throws IOException, InterruptedException {
+        try (WatchService watcher = inputDirectory.getFileSystem().newWatchService()) {
+            inputDirectory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            for (Path csv : listCsvFiles()) {
+                processSafely(csv);
+            }
+
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                long wait = untilTailDue();
+                WatchKey key = wait < 0 ? watcher.take() : watcher.poll(wait, TimeUnit.MILLISECONDS);
+                boolean overflow = false;
+                if (key != null) {
+                    overflow = collect(key, changed);
+                    WatchKey more;
+                    while ((more = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        overflow |= collect(more, changed);
+                    }
+                }
+                if (overflow) {
+                    changed.addAll(listCsvFiles());
+                }
+                // unterminated tails nothing has touched since
+                for (Map.Entry<Path, FileState> file : states.entrySet()) {
+                    if (file.getValue().tailSize >= 0 && file.getValue().untilTailDue() == 0) {
+                        changed.add(file.getKey());
+                    }
+                }
+
+                for (Path csv : changed) {
+                    processSafely(csv);
+                }
+            }
+        }
+    }
+
+    // Milliseconds until the first unterminated tail can be taken, -1 if there is none
+    private long untilTailDue() {
+        long wait = -1;
+        for (FileState state : states.values()) {
+            if (state.tailSize >= 0) {
+                wait = wait < 0 ? state.untilTailDue() : Math.min(wait, state.untilTailDue());
+            }
+        }
+        return wait;
+    }
+
+    // Returns true if events were lost and the whole folder has to be looked at
+    private boolean collect(WatchKey key, Set<Path> changed) throws IOException {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (isCsv(name)) {
+                changed.add(inputDirectory.resolve(name));
+            }
+        }
+        if (!key.reset()) {
+            throw new IOException("Папка больше недоступна: " + inputDirectory);
+        }
+        return overflow;
+    }
+
+    private List<Path> listCsvFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(inputDirectory)) {
+            for (Path entry : entries) {
+                if (isCsv(entry.getFileName()) && Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static boolean isCsv(Path name) {
+        return name.toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+    }
+
+    private void processSafely(Path csv) {
+        try {
+            process(csv);
+        } catch (IOException | RuntimeException e) {
+            listener.batchFailed(csv, e);
+        }
+    }
+
+    // Generates documents for the complete records appended since the last call; null if there were none
+    GenerationReport process(Path csv) throws IOException {
+        if (!Files.isRegularFile(csv)) {
+            states.remove(csv);
+            return null;
+        }
+
+        FileState state = states.computeIfAbsent(csv, k -> new FileState());
+        long size = Files.size(csv);
+        if (size < state.offset || !state.headerMatches(csv)) {
+            // replaced or rewritten rather than appended to: start over
+            state = new FileState();
+            states.put(csv, state);
+        }
+        if (size == state.offset) {
+            return null;
+        }
+
+        byte[] tail = readRange(csv, state.offset, size);
+        int from = 0;
+        if (state.lineOpen) {
+            // the line break of a record taken without one
+            if (tail.length == 1 && tail[0] == '\r') {
+                return null;
+            }
+            if (tail[0] == '\r' && tail[1] == '\n') {
+                from = 2;
+            } else if (tail[0] == '\n') {
+                from = 1;
+            }
+        }
+
+        int end = CsvBoundaryScanner.lastRecordEnd(tail, from, tail.length);
+        boolean unterminated = false;
+        if (end < tail.length) {
+            if (!state.tailSettled(size)) {
+                if (end == from) {
+                    return null;
+                }
+            } else if (CsvBoundaryScanner.hasLoneCarriageReturn(tail, end, tail.length)) {
+                state.tailSize = -1;
+                throw new IOException("Строки файла разделены одним символом CR, такой CSV нельзя дочитывать по частям: "
+                        + "сохраните его с переводами строк LF или CRLF");
+            } else {
+                end = tail.length;
+                unterminated = true;
+            }
+        }
+        if (end == from) {
+            return null;
+        }
+
+        int headerLength = 0;
+        if (state.schema == null) {
+            headerLength = CsvBoundaryScanner.recordEnd(tail, 0, end);
+        }
+
+        try (CSVDataFetcher.RowIterator rows = CSVDataFetcher.stream(
+                new ByteArrayInputStream(tail, from, end - from), state.schema, null)) {
+            if (state.schema == null) {
+                state.schema = rows.getSchema();
+                state.header = Arrays.copyOf(tail, headerLength);
+            }
+
+            int firstRow = state.rows + 1;
+            rows.setRecordsBefore(state.rows);
+            // a batch that fails is read again next time, and its rows must get the same names then
+            FileNames fileNames = state.fileNames.copy();
+            GenerationReport report = rows.hasNext()
+                    ? WordTemplateProcessor.fillTemplate(templatePath, outputDirectory, rows, options, fileNames)
+                    : null;
+            state.fileNames = fileNames;
+            state.offset += end;
+            state.rows = rows.getRecordNumber();
+            state.lineOpen = unterminated;
+            if (state.offset == size) {
+                state.tailSize = -1;
+            }
+            if (report != null) {
+                listener.batchProcessed(csv, firstRow, report);
+            }
+            return report;
+        } catch (CSVDataFetcher.RowParseException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+    }
+
+    private static byte[] readRange(Path file, long from, long to) throws IOException {
+        long length = to - from;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Слишком большой прирост файла за раз: " + length + " байт");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static final class FileState {
+        long offset;
+        int rows;
+        RowSchema schema;
+        // raw header record, to notice a file rewritten with another layout
+        byte[] header;
+        // a namesake in a later batch gets a numbered file instead of overwriting the earlier one
+        FileNames fileNames = new FileNames();
+        // the last record was taken without a line break
+        boolean lineOpen;
+        // file size when an unterminated last record was first seen, -1 if there is none
+        long tailSize = -1;
+        long tailSince;
+
+        // Whether the unterminated last record has waited long enough for a file of this size
+        boolean tailSettled(long size) {
+            if (tailSize != size) {
+                tailSize = size;
+                tailSince = System.nanoTime();
+                return false;
+            }
+            return untilTailDue() == 0;
+        }
+
+        long untilTailDue() {
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tailSince);
+            return Math.max(0, TAIL_MILLIS - waited);
+        }
+
+        boolean headerMatches(Path csv) throws IOException {
+            if (header == null) {
+                return true;
+            }
+            return Arrays.equals(header, readRange(csv, 0, Math.min(header.length, Files.size(csv))));
+        }
+    }
+}
\ No newline at end of file
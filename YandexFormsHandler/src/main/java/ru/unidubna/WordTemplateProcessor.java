@@ -2,26 +2,62 @@ package ru.unidubna;
 
 import org.apache.poi.xwpf.usermodel.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class WordTemplateProcessor {
-    private static final String ANSWER_PLACEHOLDER = "[ОТВЕТ]";
+    static final String ANSWER_PLACEHOLDER = "[ОТВЕТ]";
+    static final String METRICS_FILE_NAME = "metrics.json";
+    static final String STATISTICS_FILE_NAME = "статистика.docx";
+    // rarer free-text answers of a question are summed up in one line
+    private static final int STATISTICS_TOP_ANSWERS = 20;
     private static final Pattern ANSWER_PATTERN = Pattern.compile("\\[ОТВЕТ\\]");
 
 
     public static void fillTemplate(String templatePath, String outputDirectory, List<Map<String, String>> allStudentsData) throws IOException {
-        if (allStudentsData.isEmpty()) {
+        fillTemplate(templatePath, outputDirectory, allStudentsData.iterator());
+    }
+
+    // Consumes rows one at a time, so it can be fed straight from CSVDataFetcher.stream()
+    public static void fillTemplate(String templatePath, String outputDirectory, Iterator<Map<String, String>> studentRows) throws IOException {
+        GenerationReport report = fillTemplate(templatePath, outputDirectory, studentRows, new GenerationOptions());
+        if (report.hasFailures()) {
+            GenerationReport.Failure first = report.getFailures().get(0);
+            throw new IOException("Не удалось создать документов: " + report.getFailures().size() + ", первая ошибка: " + first, first.getError());
+        }
+    }
+
+    // A failing row is recorded in the report and the rest of the batch carries on
+    public static GenerationReport fillTemplate(String templatePath, String outputDirectory, Iterator<Map<String, String>> studentRows,
+                                                GenerationOptions options) throws IOException {
+        return fillTemplate(templatePath, outputDirectory, studentRows, options, new FileNames());
+    }
+
+    // fileNames carries the names already given across calls, e.g. the batches of one watched file
+    static GenerationReport fillTemplate(String templatePath, String outputDirectory, Iterator<Map<String, String>> studentRows,
+                                         GenerationOptions options, FileNames fileNames) throws IOException {
+        long start = System.nanoTime();
+        RunMetrics metrics = options.getMetrics() != null ? options.getMetrics() : new RunMetrics();
+        GenerationReport report = new GenerationReport(metrics);
+
+        Map<String, String> firstRow = nextRow(studentRows, report);
+        if (firstRow == null) {
             System.out.println("Нет данных для обработки");
-            return;
+            report.finish(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return report;
         }
 
-        // if there's no template, we're creating it
-        if (templatePath == null) {
-            templatePath = outputDirectory + File.separator + "template_auto.docx";
-            createTemplate(templatePath, allStudentsData);
-            System.out.println("Создан автоматический шаблон: " + templatePath);
+        String templateColumn = options.getTemplateColumn();
+        boolean merged = options.getMergedName() != null;
+        if (merged && (templateColumn != null || options.getArchiveName() != null || options.getSink() != null)) {
+            // the copies share one set of styles and numbering, so they must come from one template
+            throw new IllegalArgumentException("Общий документ собирается из одного шаблона и не кладётся в архив");
+        }
+        if (templateColumn != null && !firstRow.containsKey(templateColumn)) {
+            throw new IOException("В CSV нет колонки для выбора шаблона: " + templateColumn);
         }
 
         File outputDir = new File(outputDirectory);
@@ -29,119 +65,283 @@ public class WordTemplateProcessor {
             outputDir.mkdirs();
         }
 
-        // for each entry
-        for (int i = 0; i < allStudentsData.size(); i++) {
-            Map<String, String> studentData = allStudentsData.get(i);
-            String studentName = studentData.getOrDefault("ФИО", "Студент_" + (i + 1));
-
-            // file name gen
-            String safeFileName = studentName.replaceAll("[^a-zA-Zа-яА-Я0-9\\s]", "").replaceAll("\\s+", "_");
-            String outputPath = outputDirectory + File.separator + "справка_" + safeFileName + ".docx";
-
-            fillSingleTemplate(templatePath, outputPath, studentData);
-            System.out.println("Создан документ: " + outputPath + " для " + studentName);
+        // if there's no template, we're creating it
+        long templateStart = System.nanoTime();
+        TemplateCache templateCache = options.getTemplateCache() != null ? options.getTemplateCache() : new TemplateCache();
+        CompiledTemplate template;
+        byte[] templateFingerprint;
+        if (templatePath == null) {
+            templatePath = outputDirectory + File.separator + "template_auto.docx";
+            template = CompiledTemplate.fromBytes(createTemplate(templatePath, firstRow.keySet()));
+            System.out.println("Создан автоматический шаблон: " + templatePath);
+            // the auto template is defined by the question list alone
+            templateFingerprint = ("auto\n" + String.join("\n", firstRow.keySet())).getBytes(StandardCharsets.UTF_8);
+        } else {
+            template = templateCache.get(templatePath, metrics);
+            templateFingerprint = template.getContent();
         }
-    }
-
-    private static void fillSingleTemplate(String templatePath, String outputPath, Map<String, String> studentData) throws IOException {
-        try (FileInputStream fis = new FileInputStream(templatePath);
-             XWPFDocument document = new XWPFDocument(fis)) {
-
-            for (Map.Entry<String, String> entry : studentData.entrySet()) {
-                String question = entry.getKey();
-                String answer = entry.getValue();
-
-                if (answer == null || answer.trim().isEmpty()) {
-                    answer = "Не указано";
-                }
 
-                replaceAnswerAfterQuestion(document, question, answer);
+        GenerationOptions.Engine engine = options.getEngine();
+        if (engine == GenerationOptions.Engine.STREAMING || merged) {
+            template.streaming();
+        }
+        metrics.record(RunMetrics.Phase.TEMPLATE_LOAD, templateStart);
+        report.setTemplateMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - templateStart));
+        RowTemplates routes = templateColumn == null ? null
+                : new RowTemplates(options, templateCache, template, templateFingerprint, metrics);
+
+        // unchanged rows of an incremental run keep the document from last time; an archive or a merged
+        // document is always rebuilt whole
+        boolean archive = options.getArchiveName() != null || options.getSink() != null || merged;
+        boolean ownSink = options.getSink() == null;
+        // with routing each row's own template goes into its hash, so editing one template redoes only its rows
+        RunManifest manifest = options.isIncremental() && !archive
+                ? RunManifest.open(outputDirectory,
+                        routes == null ? templateFingerprint : ("route\n" + templateColumn).getBytes(StandardCharsets.UTF_8),
+                        engine.name().getBytes(StandardCharsets.UTF_8))
+                : null;
+        DocumentSink sink;
+        try {
+            if (!ownSink) {
+                sink = options.getSink();
+            } else if (merged) {
+                sink = DocumentSink.merged(new File(outputDirectory, options.getMergedName()), template.streaming());
+            } else if (archive) {
+                sink = DocumentSink.zip(new File(outputDirectory, options.getArchiveName()), options.getCompressionLevel());
+            } else {
+                sink = DocumentSink.directory(outputDirectory, options.getSyncBatch(),
+                        manifest == null ? null : manifest::published);
             }
-
-            // Заменяем оставшиеся [ОТВЕТ] на "Не указано"
-            replaceRemainingPlaceholders(document);
-
-            try (FileOutputStream fos = new FileOutputStream(outputPath)) {
-                document.write(fos);
+        } catch (IOException | RuntimeException e) {
+            if (manifest != null) {
+                manifest.close();
             }
+            throw e;
         }
-    }
 
-    private static void replaceAnswerAfterQuestion(XWPFDocument document, String question, String answer) {
-        if (replaceInParagraphs(document.getParagraphs(), question, answer)) {
-            return;
+        int parallelism = options.effectiveParallelism();
+        ExecutorService executor = options.getExecutor();
+        boolean ownExecutor = executor == null && parallelism > 1;
+        if (ownExecutor) {
+            executor = Executors.newFixedThreadPool(parallelism, WordTemplateProcessor::newWorkerThread);
         }
+        GenerationListener listener = options.getListener();
+        GenerationPipeline pipeline = new GenerationPipeline(engine, merged, sink, manifest, metrics, report, listener,
+                executor, parallelism);
+        boolean finished = false;
+
+        long generateStart = System.nanoTime();
+        try {
+            // for each entry
+            Map<String, String> studentData = firstRow;
+            for (int i = 0; studentData != null; i++) {
+                // a cancelled run (the reading thread interrupted) stops before the next row
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                report.rowRead();
+                // numbered as in the source, so rows a filter leaves out still count
+                int rowNumber = studentRows instanceof CSVDataFetcher.RowIterator
+                        ? ((CSVDataFetcher.RowIterator) studentRows).getRecordNumber() : i + 1;
+                String studentName = studentData.getOrDefault("ФИО", "Студент_" + rowNumber);
+
+                String fileName = fileNames.next(studentName);
+                String outputPath = sink.location(fileName);
+
+                CompiledTemplate rowTemplate;
+                try {
+                    rowTemplate = routes == null ? template : routes.templateFor(studentData);
+                } catch (IOException e) {
+                    // a missing or broken routed template fails its rows, the rest of the batch goes on
+                    report.documentFailed(rowNumber, studentName, e);
+                    listener.documentFailed(rowNumber, studentName, e);
+                    studentData = nextRow(studentRows, report);
+                    continue;
+                }
 
-        for (XWPFTable table : document.getTables()) {
-            for (XWPFTableRow row : table.getRows()) {
-                for (XWPFTableCell cell : row.getTableCells()) {
-                    if (replaceInParagraphs(cell.getParagraphs(), question, answer)) {
-                        return;
-                    }
+                String rowHash = manifest == null ? null
+                        : manifest.hash(studentData, routes == null ? null : routes.fingerprintOf(rowTemplate));
+                if (manifest != null && manifest.isUpToDate(new File(outputPath), rowHash)) {
+                    report.documentSkipped();
+                    listener.documentSkipped(outputPath, studentName);
+                } else {
+                    pipeline.submit(new GenerationPipeline.Job(rowTemplate, fileName, studentData, rowNumber, studentName, rowHash));
                 }
-            }
-        }
 
-        for (XWPFHeader header : document.getHeaderList()) {
-            if (replaceInParagraphs(header.getParagraphs(), question, answer)) {
-                return;
+                studentData = nextRow(studentRows, report);
             }
-        }
 
-        for (XWPFFooter footer : document.getFooterList()) {
-            if (replaceInParagraphs(footer.getParagraphs(), question, answer)) {
-                return;
+            // wait for the documents still being generated and written
+            pipeline.finish();
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Генерация документов прервана");
+        } finally {
+            if (!finished) {
+                pipeline.abort();
+            }
+            if (ownExecutor) {
+                executor.shutdownNow();
+            }
+            try {
+                if (ownSink && finished) {
+                    sink.close();
+                } else if (ownSink) {
+                    sink.discard();
+                }
+            } finally {
+                if (manifest != null) {
+                    manifest.close();
+                }
             }
         }
+
+        long end = System.nanoTime();
+        report.setGenerateMillis(TimeUnit.NANOSECONDS.toMillis(end - generateStart));
+        report.finish(TimeUnit.NANOSECONDS.toMillis(end - start));
+        writeMetrics(outputDirectory, report);
+        return report;
     }
 
-    private static boolean replaceInParagraphs(List<XWPFParagraph> paragraphs, String question, String answer) {
-        boolean questionFound = false;
+    // metrics.json next to the documents; losing it must not fail a finished batch
+    private static void writeMetrics(String outputDirectory, GenerationReport report) {
+        File metricsFile = new File(outputDirectory, METRICS_FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(metricsFile), StandardCharsets.UTF_8)) {
+            writer.write(report.toJson());
+            writer.write(System.lineSeparator());
+        } catch (IOException e) {
+            System.err.println("Не удалось записать " + metricsFile + ": " + e.getMessage());
+        }
+    }
 
-        for (XWPFParagraph paragraph : paragraphs) {
-            String paragraphText = paragraph.getText();
-            if (paragraphText == null) continue;
+    private static Map<String, String> nextRow(Iterator<Map<String, String>> studentRows, GenerationReport report) {
+        long start = System.nanoTime();
+        try {
+            return studentRows.hasNext() ? studentRows.next() : null;
+        } finally {
+            report.addReadNanos(System.nanoTime() - start);
+        }
+    }
 
-            if (paragraphText.contains(question)) {
-                questionFound = true;
-                continue;
-            }
+    // One document into out with the chosen engine; runs on a generator worker
+    static void render(CompiledTemplate template, GenerationOptions.Engine engine, Map<String, String> studentData,
+                       OutputStream out, RunMetrics metrics) throws IOException {
+        if (engine == GenerationOptions.Engine.STREAMING) {
+            StreamingTemplate streaming = template.streaming();
+            long bindingStart = System.nanoTime();
+            byte[][] answers = streaming.answers(studentData, metrics);
+            metrics.record(RunMetrics.Phase.BINDING, bindingStart);
+
+            long writeStart = System.nanoTime();
+            streaming.write(answers, out);
+            metrics.record(RunMetrics.Phase.DOCUMENT_WRITE, writeStart);
+        } else {
+            fillSingleTemplate(template, out, studentData, metrics);
+        }
+    }
 
-            if (questionFound && paragraphText.contains(ANSWER_PLACEHOLDER)) {
-                replacePlaceholderInParagraph(paragraph, ANSWER_PLACEHOLDER, answer);
-                return true;
+    // Per-row template choice for one run. Each routed template is looked up once per run,
+    // always on the row-reading thread; one that fails to load fails all of its rows with the same error.
+    private static final class RowTemplates {
+        private final String column;
+        private final Map<String, String> paths = new HashMap<>();
+        private final TemplateCache cache;
+        private final CompiledTemplate defaultTemplate;
+        private final byte[] defaultFingerprint;
+        private final GenerationOptions.Engine engine;
+        private final RunMetrics metrics;
+        private final Map<String, CompiledTemplate> resolved = new HashMap<>();
+        private final Map<String, IOException> failed = new HashMap<>();
+        private final Map<CompiledTemplate, byte[]> fingerprints = new IdentityHashMap<>();
+
+        RowTemplates(GenerationOptions options, TemplateCache cache, CompiledTemplate defaultTemplate,
+                     byte[] defaultFingerprint, RunMetrics metrics) {
+            this.column = options.getTemplateColumn();
+            for (Map.Entry<String, String> route : options.getColumnTemplates().entrySet()) {
+                paths.put(route.getKey().trim(), route.getValue());
             }
+            this.cache = cache;
+            this.defaultTemplate = defaultTemplate;
+            this.defaultFingerprint = defaultFingerprint;
+            this.engine = options.getEngine();
+            this.metrics = metrics;
         }
 
-        return false;
-    }
-
-    private static void replaceRemainingPlaceholders(XWPFDocument document) {
-        replaceRemainingInParagraphs(document.getParagraphs());
+        CompiledTemplate templateFor(Map<String, String> row) throws IOException {
+            String value = row.get(column);
+            String path = value == null ? null : paths.get(value.trim());
+            if (path == null) {
+                return defaultTemplate;
+            }
 
-        for (XWPFTable table : document.getTables()) {
-            for (XWPFTableRow row : table.getRows()) {
-                for (XWPFTableCell cell : row.getTableCells()) {
-                    replaceRemainingInParagraphs(cell.getParagraphs());
+            CompiledTemplate template = resolved.get(path);
+            if (template == null) {
+                IOException error = failed.get(path);
+                if (error != null) {
+                    throw error;
+                }
+                long start = System.nanoTime();
+                try {
+                    template = cache.get(path, metrics);
+                    if (engine == GenerationOptions.Engine.STREAMING) {
+                        template.streaming();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // POI reports a file that is not a .docx with unchecked exceptions
+                    error = new IOException("Шаблон для \"" + value.trim() + "\" (" + path + "): " + e.getMessage(), e);
+                    failed.put(path, error);
+                    throw error;
+                } finally {
+                    metrics.record(RunMetrics.Phase.TEMPLATE_LOAD, start);
                 }
+                resolved.put(path, template);
             }
+            return template;
         }
 
-        for (XWPFHeader header : document.getHeaderList()) {
-            replaceRemainingInParagraphs(header.getParagraphs());
+        // What identifies the row's template in the incremental manifest
+        byte[] fingerprintOf(CompiledTemplate template) {
+            return fingerprints.computeIfAbsent(template, t -> TemplateCache.hash(
+                    t == defaultTemplate ? defaultFingerprint : t.getContent()).getBytes(StandardCharsets.UTF_8));
         }
+    }
 
-        for (XWPFFooter footer : document.getFooterList()) {
-            replaceRemainingInParagraphs(footer.getParagraphs());
-        }
+    static Thread newWorkerThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "docx-worker");
+        thread.setDaemon(true);
+        return thread;
     }
 
-    private static void replaceRemainingInParagraphs(List<XWPFParagraph> paragraphs) {
-        for (XWPFParagraph paragraph : paragraphs) {
-            String paragraphText = paragraph.getText();
-            if (paragraphText != null && paragraphText.contains(ANSWER_PLACEHOLDER)) {
-                replacePlaceholderInParagraph(paragraph, ANSWER_PLACEHOLDER, "Не указано");
+    static void fillSingleTemplate(CompiledTemplate template, OutputStream out, Map<String, String> studentData,
+                                   RunMetrics metrics) throws IOException {
+        long openStart = System.nanoTime();
+        try (XWPFDocument document = template.newDocument()) {
+            List<List<XWPFParagraph>> containers = CompiledTemplate.paragraphContainers(document);
+            metrics.record(RunMetrics.Phase.DOCUMENT_OPEN, openStart);
+
+            long bindingStart = System.nanoTime();
+            CompiledTemplate.Binding binding = template.bind(new ArrayList<>(studentData.keySet()));
+
+            // One pass over the placeholders: bound ones get the answer, the rest "Не указано"
+            int defaults = 0;
+            for (int i = 0; i < binding.size(); i++) {
+                String question = binding.questions[i];
+                String answer = question == null ? null : studentData.get(question);
+                if (answer == null || answer.trim().isEmpty()) {
+                    answer = "Не указано";
+                    defaults++;
+                }
+
+                XWPFParagraph paragraph = containers.get(binding.containers[i]).get(binding.paragraphs[i]);
+                replacePlaceholderInParagraph(paragraph, ANSWER_PLACEHOLDER, answer);
             }
+            metrics.placeholders(binding.size() - defaults, defaults);
+            metrics.record(RunMetrics.Phase.BINDING, bindingStart);
+
+            long writeStart = System.nanoTime();
+            document.write(out);
+            metrics.record(RunMetrics.Phase.DOCUMENT_WRITE, writeStart);
         }
     }
 
@@ -166,7 +366,125 @@ public class WordTemplateProcessor {
         newRun.setText(replacedText);
     }
 
-    private static void createTemplate(String templatePath, List<Map<String, String>> sampleData) throws IOException {
+    // Summary document for the whole export, see ResponseStatistics
+    public static void writeStatistics(ResponseStatistics statistics, String outputPath) throws IOException {
+        try (XWPFDocument document = new XWPFDocument()) {
+            XWPFParagraph title = document.createParagraph();
+            title.setAlignment(ParagraphAlignment.CENTER);
+            XWPFRun titleRun = title.createRun();
+            titleRun.setText("СВОДНАЯ СТАТИСТИКА ОТВЕТОВ");
+            titleRun.setBold(true);
+            titleRun.setFontSize(16);
+
+            long responses = statistics.getResponses();
+            document.createParagraph().createRun().setText("Всего ответов: " + responses);
+
+            for (ResponseStatistics.QuestionSummary question : statistics.getQuestions()) {
+                document.createParagraph();
+                XWPFRun questionRun = document.createParagraph().createRun();
+                questionRun.setText(question.getQuestion());
+                questionRun.setBold(true);
+                document.createParagraph().createRun().setText("Ответили: " + question.getAnswered() + " из " + responses);
+
+                Map<String, Long> variants = question.getVariantCounts();
+                if (!variants.isEmpty()) {
+                    XWPFTable table = statisticsTable(document, "Вариант");
+                    for (Map.Entry<String, Long> variant : variants.entrySet()) {
+                        statisticsRow(table, variant.getKey(), variant.getValue(), responses);
+                    }
+                }
+
+                List<Map.Entry<String, Long>> answers = question.getAnswerCounts();
+                if (!answers.isEmpty()) {
+                    XWPFTable table = statisticsTable(document, "Ответ");
+                    long other = 0;
+                    for (int i = 0; i < answers.size(); i++) {
+                        if (i < STATISTICS_TOP_ANSWERS) {
+                            statisticsRow(table, answers.get(i).getKey(), answers.get(i).getValue(), responses);
+                        } else {
+                            other += answers.get(i).getValue();
+                        }
+                    }
+                    if (other > 0) {
+                        statisticsRow(table, "Другие ответы (" + (answers.size() - STATISTICS_TOP_ANSWERS) + ")", other, responses);
+                    }
+                }
+
+                if (question.hasPoints()) {
+                    String points = question.getScored() == 0 ? "Баллы: нет"
+                            : String.format("Баллы: сумма %s, среднее %.2f, минимум %s, максимум %s (оценено ответов: %d)",
+                                    formatPoints(question.getPointsSum()), question.getPointsMean(),
+                                    formatPoints(question.getPointsMin()), formatPoints(question.getPointsMax()),
+                                    question.getScored());
+                    if (question.getUnparsedPoints() > 0) {
+                        points += "; не числом: " + question.getUnparsedPoints();
+                    }
+                    document.createParagraph().createRun().setText(points);
+                }
+            }
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputPath))) {
+                document.write(out);
+            }
+        }
+    }
+
+    private static XWPFTable statisticsTable(XWPFDocument document, String label) {
+        XWPFTable table = document.createTable(1, 3);
+        XWPFTableRow header = table.getRow(0);
+        header.getCell(0).setText(label);
+        header.getCell(1).setText("Количество");
+        header.getCell(2).setText("Доля");
+        return table;
+    }
+
+    private static void statisticsRow(XWPFTable table, String label, long count, long responses) {
+        XWPFTableRow row = table.createRow();
+        row.getCell(0).setText(label);
+        row.getCell(1).setText(Long.toString(count));
+        row.getCell(2).setText(responses == 0 ? "" : String.format("%.1f%%", 100.0 * count / responses));
+    }
+
+    // whole scores without a fraction part, as they are in the export
+    private static String formatPoints(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : String.format("%.2f", value);
+    }
+
+    // One row's copy of the template body for a merged document, see StreamingTemplate.MergedDocument
+    static void renderBody(CompiledTemplate template, Map<String, String> studentData, int copy, OutputStream out,
+                           RunMetrics metrics) throws IOException {
+        StreamingTemplate streaming = template.streaming();
+        long bindingStart = System.nanoTime();
+        byte[][] answers = streaming.answers(studentData, metrics);
+        metrics.record(RunMetrics.Phase.BINDING, bindingStart);
+
+        long writeStart = System.nanoTime();
+        streaming.writeBody(answers, copy, out);
+        metrics.record(RunMetrics.Phase.DOCUMENT_WRITE, writeStart);
+    }
+
+    // Renders a small document with each engine, into memory only, so that POI, OOXML and XMLBeans classes
+    // are loaded and initialised before the first real row needs them
+    static void warmUp() throws IOException {
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("ФИО", "Иванов Иван");
+        row.put("Вопрос", "Ответ");
+        CompiledTemplate template = CompiledTemplate.fromBytes(autoTemplate(row.keySet()));
+        RunMetrics metrics = new RunMetrics();
+        for (GenerationOptions.Engine engine : GenerationOptions.Engine.values()) {
+            render(template, engine, row, OutputStream.nullOutputStream(), metrics);
+        }
+    }
+
+    private static byte[] createTemplate(String templatePath, Collection<String> questions) throws IOException {
+        byte[] content = autoTemplate(questions);
+        try (FileOutputStream fos = new FileOutputStream(templatePath)) {
+            fos.write(content);
+        }
+        return content;
+    }
+
+    private static byte[] autoTemplate(Collection<String> questions) throws IOException {
         try (XWPFDocument document = new XWPFDocument()) {
 
             XWPFParagraph title = document.createParagraph();
@@ -178,26 +496,22 @@ public class WordTemplateProcessor {
 
             document.createParagraph();
 
-            if (!sampleData.isEmpty()) {
-                Map<String, String> sample = sampleData.get(0);
+            for (String question : questions) {
+                XWPFParagraph questionPara = document.createParagraph();
+                XWPFRun questionRun = questionPara.createRun();
+                questionRun.setText(question);
+                questionRun.setBold(true);
 
-                for (String question : sample.keySet()) {
-                    XWPFParagraph questionPara = document.createParagraph();
-                    XWPFRun questionRun = questionPara.createRun();
-                    questionRun.setText(question);
-                    questionRun.setBold(true);
+                XWPFParagraph answerPara = document.createParagraph();
+                XWPFRun answerRun = answerPara.createRun();
+                answerRun.setText("Ответ: " + ANSWER_PLACEHOLDER);
 
-                    XWPFParagraph answerPara = document.createParagraph();
-                    XWPFRun answerRun = answerPara.createRun();
-                    answerRun.setText("Ответ: " + ANSWER_PLACEHOLDER);
-
-                    document.createParagraph();
-                }
+                document.createParagraph();
             }
 
-            try (FileOutputStream fos = new FileOutputStream(templatePath)) {
-                document.write(fos);
-            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            document.write(content);
+            return content.toByteArray();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package ru.unidubna;
+
+import com.opencsv.CSVReaderHeaderAware;
+import com.opencsv.exceptions.CsvValidationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The mapped parser must split records exactly as opencsv does, whatever the line endings,
+// and wherever the chunk boundaries fall
+class MappedCsvParserTest {
+    private static final String[] HEADERS = {
+            "ФИО", "Группа", "Баллы", "Факультет / ИСАУ", "Факультет / ФЕН", "Комментарий"
+    };
+    private static final String BOM = "\uFEFF";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void lfLineEndings() throws IOException, CsvValidationException {
+        assertSameRows(write("lf.csv", "\n", false, 200, 1));
+    }
+
+    @Test
+    void crLfLineEndings() throws IOException, CsvValidationException {
+        assertSameRows(write("crlf.csv", "\r\n", false, 200, 2));
+    }
+
+    @Test
+    void crLineEndings() throws IOException, CsvValidationException {
+        assertSameRows(write("cr.csv", "\r", false, 200, 3));
+    }
+
+    @Test
+    void byteOrderMark() throws IOException, CsvValidationException {
+        Path file = write("bom.csv", "\r\n", true, 50, 4);
+        List<Map<String, String>> rows = assertSameRows(file);
+        // like opencsv, the mark stays in the first header
+        assertTrue(rows.get(0).containsKey(BOM + HEADERS[0]), rows.get(0).toString());
+    }
+
+    @Test
+    void quotedNewlinesAndDoubledQuotes() throws IOException, CsvValidationException {
+        Path file = directory.resolve("quoted.csv");
+        Files.writeString(file, String.join(",", HEADERS) + "\r\n"
+                + "\"Иванов\nИван\",\"41\",7,\"\",+,\"Сказал \"\"да\"\"\r\nи ушёл\"\r\n"
+                + "\"\"\"Петров\"\"\",42,\"3\",+,,\"\"\"\"\n"
+                + "Сидоров,43,5,,,\"\n\n\"", StandardCharsets.UTF_8);
+        List<Map<String, String>> rows = assertSameRows(file);
+        assertEquals(3, rows.size());
+        assertEquals("Сказал \"да\"\nи ушёл", rows.get(0).get("Комментарий"));
+        assertEquals("\"Петров\"", rows.get(1).get("ФИО"));
+    }
+
+    @Test
+    void recordsAcrossChunkBoundaries() throws IOException, CsvValidationException {
+        // chunks are at least 1 MB: a few of them, each boundary target likely inside a quoted field
+        Path file = write("large.csv", "\r\n", false, 30000, 5);
+        assertTrue(Files.size(file) > 2 << 20, "file too small to be split: " + Files.size(file));
+        for (ForkJoinPool pool : List.of(new ForkJoinPool(1), new ForkJoinPool(4))) {
+            try {
+                assertEquals(expected(file), new ArrayList<>(MappedCsvParser.parse(file.toString(), StandardCharsets.UTF_8, pool)));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private List<Map<String, String>> assertSameRows(Path file) throws IOException, CsvValidationException {
+        List<Map<String, String>> expected = expected(file);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(expected, new ArrayList<>(MappedCsvParser.parse(file.toString(), StandardCharsets.UTF_8, pool)));
+        } finally {
+            pool.shutdown();
+        }
+        return expected;
+    }
+
+    // opencsv's records, projected the way CSVDataFetcher projects them
+    private static List<Map<String, String>> expected(Path file) throws IOException, CsvValidationException {
+        String[] headers;
+        try (CSVReaderHeaderAware reader = new CSVReaderHeaderAware(
+                new InputStreamReader(new FileInputStream(file.toFile()), StandardCharsets.UTF_8))) {
+            headers = HEADERS.clone();
+            Map<String, String> first = reader.readMap();
+            if (first != null && first.containsKey(BOM + HEADERS[0])) {
+                headers[0] = BOM + HEADERS[0];
+            }
+            RowSchema schema = RowSchema.compile(headers);
+            List<Map<String, String>> rows = new ArrayList<>();
+            for (Map<String, String> record = first; record != null; record = reader.readMap()) {
+                String[] values = new String[headers.length];
+                for (int i = 0; i < headers.length; i++) {
+                    values[i] = record.get(headers[i]);
+                }
+                rows.add(schema.project(values));
+            }
+            return rows;
+        }
+    }
+
+    // Random answers with commas, quotes, backslashes, Cyrillic and multi-line text; every line,
+    // inside quotes or not, ends with lineEnd
+    private Path write(String name, String lineEnd, boolean bom, int records, long seed) throws IOException {
+        Random random = new Random(seed);
+        String[] pieces = {
+                "Иванов", "Петров Пётр", "a,b", "Сказал \"да\"", "C:\\\\temp", "", " ", "41", "+",
+                "первая" + lineEnd + "вторая", lineEnd, "\"", "ёжик" + lineEnd + lineEnd + "конец"
+        };
+        StringBuilder text = new StringBuilder(bom ? BOM : "");
+        text.append(String.join(",", HEADERS)).append(lineEnd);
+        for (int r = 0; r < records; r++) {
+            for (int c = 0; c < HEADERS.length; c++) {
+                if (c > 0) {
+                    text.append(',');
+                }
+                StringBuilder value = new StringBuilder();
+                for (int n = random.nextInt(4); n > 0; n--) {
+                    value.append(pieces[random.nextInt(pieces.length)]);
+                }
+                text.append('"').append(value.toString().replace("\"", "\"\"")).append('"');
+            }
+            text.append(lineEnd);
+        }
+        Path file = directory.resolve(name);
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+        return file;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,98 @@
+package ru.unidubna;
+
+import org.apache.poi.xwpf.usermodel.*;
+import org.junit.jupiter.api.Test;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+// Every copy in a merged document is a certificate of its own: its lists count from the start again
+// and its bookmarks don't clash with the other copies'
+class MergedDocumentTest {
+
+    @Test
+    void everyCopyRestartsItsListsAndNamesItsBookmarks() throws IOException {
+        StreamingTemplate template = StreamingTemplate.compile(template());
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("ФИО", "Иванов Иван");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StreamingTemplate.MergedDocument merged = template.merged(out)) {
+            for (int copy = 0; copy < 2; copy++) {
+                template.writeBody(template.answers(row, null), copy, merged.append(copy));
+            }
+            merged.finish();
+        }
+
+        try (XWPFDocument document = new XWPFDocument(new ByteArrayInputStream(out.toByteArray()))) {
+            List<BigInteger> numIds = new ArrayList<>();
+            List<String> bookmarks = new ArrayList<>();
+            Set<BigInteger> bookmarkIds = new HashSet<>();
+            for (XWPFParagraph paragraph : document.getParagraphs()) {
+                if (paragraph.getNumID() != null) {
+                    numIds.add(paragraph.getNumID());
+                }
+                for (CTBookmark bookmark : paragraph.getCTP().getBookmarkStartList()) {
+                    bookmarks.add(bookmark.getName());
+                    bookmarkIds.add(bookmark.getId());
+                }
+            }
+
+            // two list items per copy, each copy on a list of its own
+            assertEquals(4, numIds.size(), numIds.toString());
+            assertEquals(numIds.get(0), numIds.get(1));
+            assertEquals(numIds.get(2), numIds.get(3));
+            assertNotEquals(numIds.get(0), numIds.get(2));
+
+            XWPFNumbering numbering = document.getNumbering();
+            CTNum first = numbering.getNum(numIds.get(0)).getCTNum();
+            CTNum second = numbering.getNum(numIds.get(2)).getCTNum();
+            assertEquals(first.getAbstractNumId().getVal(), second.getAbstractNumId().getVal());
+            assertEquals(9, second.sizeOfLvlOverrideArray());
+            assertEquals(BigInteger.ZERO, second.getLvlOverrideArray(0).getIlvl());
+            assertEquals(BigInteger.ONE, second.getLvlOverrideArray(0).getStartOverride().getVal());
+
+            assertEquals(List.of("fio", "fio_1"), bookmarks);
+            assertEquals(2, bookmarkIds.size());
+        }
+    }
+
+    // ФИО with a bookmark on it, the answer, and a numbered list of two items
+    private static byte[] template() throws IOException {
+        try (XWPFDocument document = new XWPFDocument()) {
+            XWPFParagraph question = document.createParagraph();
+            CTBookmark bookmark = question.getCTP().addNewBookmarkStart();
+            bookmark.setId(BigInteger.ZERO);
+            bookmark.setName("fio");
+            question.createRun().setText("ФИО");
+            question.getCTP().addNewBookmarkEnd().setId(BigInteger.ZERO);
+            document.createParagraph().createRun().setText(WordTemplateProcessor.ANSWER_PLACEHOLDER);
+
+            CTAbstractNum abstractNum = CTAbstractNum.Factory.newInstance();
+            abstractNum.setAbstractNumId(BigInteger.ZERO);
+            CTLvl level = abstractNum.addNewLvl();
+            level.setIlvl(BigInteger.ZERO);
+            level.addNewStart().setVal(BigInteger.ONE);
+            level.addNewNumFmt().setVal(STNumberFormat.DECIMAL);
+            level.addNewLvlText().setVal("%1.");
+            XWPFNumbering numbering = document.createNumbering();
+            BigInteger numId = numbering.addNum(numbering.addAbstractNum(new XWPFAbstractNum(abstractNum)));
+            for (String item : new String[]{"Первый пункт", "Второй пункт"}) {
+                XWPFParagraph paragraph = document.createParagraph();
+                paragraph.setNumID(numId);
+                paragraph.createRun().setText(item);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.write(out);
+            return out.toByteArray();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,146 @@
+package ru.unidubna;
+
+import org.apache.poi.wp.usermodel.HeaderFooterType;
+import org.apache.poi.xwpf.usermodel.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The streaming engine must bind and fill placeholders exactly as the POI engine does,
+// in the body, in table cells and in every header and footer
+class StreamingTemplateTest {
+
+    @Test
+    void bothEnginesFillBodyTablesHeadersAndFootersAlike() throws IOException {
+        CompiledTemplate template = CompiledTemplate.fromBytes(template());
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("ФИО", "Иванов Иван");
+        row.put("Группа", "41");
+        row.put("Факультет", "ИСАУ");
+
+        List<List<String>> poi = texts(render(template, GenerationOptions.Engine.POI, row));
+        List<List<String>> streaming = texts(render(template, GenerationOptions.Engine.STREAMING, row));
+
+        assertEquals(poi, streaming);
+        // a question in the body doesn't claim a placeholder in a header
+        assertTrue(poi.contains(List.of("Номер: Не указано")), poi.toString());
+        assertTrue(poi.contains(List.of("Группа", "41")), poi.toString());
+    }
+
+    @Test
+    void headerAndFooterPlaceholdersStayUnclaimedWithoutTheirQuestion() throws IOException {
+        CompiledTemplate template = CompiledTemplate.fromBytes(template());
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("ФИО", "Петров Пётр");
+
+        assertEquals(texts(render(template, GenerationOptions.Engine.POI, row)),
+                texts(render(template, GenerationOptions.Engine.STREAMING, row)));
+    }
+
+    // A placeholder split over runs with their own formatting: the answer takes the first run's place and
+    // formatting, the text after the placeholder keeps the last run's. The POI engine fills in the same text,
+    // but rebuilds the paragraph as one plain run.
+    @Test
+    void placeholderSplitOverFormattedRunsKeepsTheRunsFormatting() throws IOException {
+        CompiledTemplate template = CompiledTemplate.fromBytes(splitTemplate());
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("ФИО", "Иванов Иван");
+
+        byte[] poi = render(template, GenerationOptions.Engine.POI, row);
+        byte[] streaming = render(template, GenerationOptions.Engine.STREAMING, row);
+
+        assertEquals(texts(poi), texts(streaming));
+        assertEquals(List.of("Иванов Иван|b", " балла|i"), runs(streaming, 1));
+        assertEquals(List.of("Иванов Иван балла|"), runs(poi, 1));
+    }
+
+    // ФИО, then its placeholder split as a bold "[ОТ" and an italic "ВЕТ] балла"
+    private static byte[] splitTemplate() throws IOException {
+        try (XWPFDocument document = new XWPFDocument()) {
+            document.createParagraph().createRun().setText("ФИО");
+            XWPFParagraph answer = document.createParagraph();
+            XWPFRun bold = answer.createRun();
+            bold.setBold(true);
+            bold.setText("[ОТ");
+            XWPFRun italic = answer.createRun();
+            italic.setItalic(true);
+            italic.setText("ВЕТ] балла");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    // Body: ФИО / answer / Группа; a table cell with its own question; a header with a bare placeholder,
+    // a first-page header with ФИО and a footer with Группа
+    private static byte[] template() throws IOException {
+        try (XWPFDocument document = new XWPFDocument()) {
+            document.createParagraph().createRun().setText("ФИО");
+            document.createParagraph().createRun().setText("Ответ: " + WordTemplateProcessor.ANSWER_PLACEHOLDER);
+            document.createParagraph().createRun().setText("Группа");
+
+            XWPFTable table = document.createTable(1, 2);
+            table.getRow(0).getCell(0).setText("Факультет");
+            XWPFTableCell cell = table.getRow(0).getCell(1);
+            cell.setText("Факультет");
+            cell.addParagraph().createRun().setText(WordTemplateProcessor.ANSWER_PLACEHOLDER);
+
+            XWPFHeader header = document.createHeader(HeaderFooterType.DEFAULT);
+            header.createParagraph().createRun().setText("Номер: " + WordTemplateProcessor.ANSWER_PLACEHOLDER);
+            XWPFHeader firstHeader = document.createHeader(HeaderFooterType.FIRST);
+            firstHeader.createParagraph().createRun().setText("ФИО");
+            firstHeader.createParagraph().createRun().setText(WordTemplateProcessor.ANSWER_PLACEHOLDER);
+
+            XWPFFooter footer = document.createFooter(HeaderFooterType.DEFAULT);
+            footer.createParagraph().createRun().setText("Группа");
+            footer.createParagraph().createRun().setText(WordTemplateProcessor.ANSWER_PLACEHOLDER);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] render(CompiledTemplate template, GenerationOptions.Engine engine, Map<String, String> row)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WordTemplateProcessor.render(template, engine, row, out, new RunMetrics());
+        return out.toByteArray();
+    }
+
+    // Text and formatting (b, i) of every run in a body paragraph
+    private static List<String> runs(byte[] docx, int paragraph) throws IOException {
+        try (XWPFDocument document = new XWPFDocument(new ByteArrayInputStream(docx))) {
+            List<String> runs = new ArrayList<>();
+            for (XWPFRun run : document.getParagraphs().get(paragraph).getRuns()) {
+                runs.add(run.text() + "|" + (run.isBold() ? "b" : "") + (run.isItalic() ? "i" : ""));
+            }
+            return runs;
+        }
+    }
+
+    // Paragraph texts per container, in the order the placeholders are bound
+    private static List<List<String>> texts(byte[] docx) throws IOException {
+        try (XWPFDocument document = new XWPFDocument(new ByteArrayInputStream(docx))) {
+            List<List<String>> texts = new ArrayList<>();
+            for (List<XWPFParagraph> container : CompiledTemplate.paragraphContainers(document)) {
+                List<String> paragraphs = new ArrayList<>();
+                for (XWPFParagraph paragraph : container) {
+                    paragraphs.add(paragraph.getText());
+                }
+                texts.add(paragraphs);
+            }
+            return texts;
+        }
+    }
+}
\ No newline at end of file